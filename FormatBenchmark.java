@@ -0,0 +1,87 @@
+import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import toolbox.gfx.Screen;
+
+/**
+ * Compares the screen pixel formats: for each one, times clearing a frame, drawing translucent rectangles
+ * and blitting the frame into the window sized image shown by the sketch
+ * (a compatible VolatileImage when a display is available, a TYPE_INT_RGB image otherwise)
+ * Run with: java --add-modules jdk.incubator.vector FormatBenchmark [width] [height]
+**/
+public class FormatBenchmark {
+
+    private static final String[] NAMES = { "ARGB", "RGB", "ARGB_PRE" };
+    private static final int[] IMAGE_TYPES = { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB_PRE };
+
+    private static final int WARMUP = 200;
+    private static final int RUNS = 500;
+
+    public static void main(String[] args) {
+        final int width = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 720;
+
+        final Image target = GraphicsEnvironment.isHeadless()
+            ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+            : GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                .createCompatibleVolatileImage(width, height);
+
+        System.out.printf("%dx%d frames, blitted into %s\n", width, height, target.getClass().getSimpleName());
+        System.out.printf("%-9s %10s %10s %10s\n", "format", "clear ms", "draw ms", "blit ms");
+
+        // the first round only warms every format up, so that the one measured first is not favored by the JIT
+        for (int round = 0; round < 2; round++) {
+            for (int format = Screen.FORMAT_ARGB; format <= Screen.FORMAT_ARGB_PRE; format++) {
+                final long[] timings = run(format, width, height, target);
+                if (round == 1) {
+                    System.out.printf("%-9s %10.3f %10.3f %10.3f\n", NAMES[format], timings[0] / 1e6 / RUNS, timings[1] / 1e6 / RUNS, timings[2] / 1e6 / RUNS);
+                }
+            }
+        }
+    }
+
+    /** Returns the total clear, draw and blit nanoseconds of RUNS frames in the given format **/
+    private static long[] run(int format, int width, int height, Image target) {
+        final BufferedImage image = new BufferedImage(width, height, IMAGE_TYPES[format]);
+        final Screen screen = new Screen(width, height, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), format);
+        final Graphics g = target.getGraphics();
+
+        long clear = 0, draw = 0, blit = 0;
+        for (int i = 0; i < WARMUP + RUNS; i++) {
+            final long start = System.nanoTime();
+            screen.clear(0xff203040 + i);
+            final long cleared = System.nanoTime();
+            drawScene(screen, i);
+            final long drawn = System.nanoTime();
+            g.drawImage(image, 0, 0, null);
+            // make sure the blit is done before stopping the clock (accelerated pipelines queue it)
+            Toolkit.getDefaultToolkit().sync();
+            final long blitted = System.nanoTime();
+
+            if (i >= WARMUP) {
+                clear += cleared - start;
+                draw += drawn - cleared;
+                blit += blitted - drawn;
+            }
+        }
+        g.dispose();
+
+        return new long[] { clear, draw, blit };
+    }
+
+    /** Draws translucent rectangles blended over a quarter of the screen **/
+    private static void drawScene(Screen screen, int frame) {
+        screen.blend(Screen.BLEND_SOURCE_OVER);
+        screen.disableOutlines();
+        final int size = Math.min(screen.getWidth(), screen.getHeight()) / 4;
+        for (int i = 0; i < 4; i++) {
+            screen.fill(0x80ff8000 + i * 0x1f00 + frame % 64);
+            final int x = (frame * 7 + i * size) % (screen.getWidth() - size);
+            screen.rectangle(x, i * size / 2, x + size, i * size / 2 + size);
+        }
+    }
+}
@@ -2,7 +2,7 @@
 read -p "Enter sketch \"*.java\" file name: " filename
 
 # compile engine
-javac -d bin/ $(find toolbox -name "*.java")
+javac --add-modules jdk.incubator.vector -d bin/ $(find toolbox -name "*.java")
 # compile sketch
 javac -d bin/ $filename.java
 
@@ -0,0 +1,113 @@
+package toolbox.gfx;
+
+import java.util.Random;
+
+/**
+ * Checks the blending kernels: translucent colors drawn onto transparent pixels, and the SIMD kernels against the scalar ones
+ * Run with: java --add-modules jdk.incubator.vector -cp <classes> toolbox.gfx.BlendTest (also without the module, for the scalar code only)
+**/
+public class BlendTest {
+
+    private static final int[] FORMATS = { Screen.FORMAT_ARGB, Screen.FORMAT_RGB, Screen.FORMAT_ARGB_PRE };
+    private static final int[] MODES = { Screen.BLEND_REPLACE, Screen.BLEND_SOURCE_OVER, Screen.BLEND_ADD, Screen.BLEND_MULTIPLY };
+
+    public static void main(String[] args) {
+        translucentOverTransparent();
+        translucentOverOpaque();
+        simdMatchesScalar();
+        System.out.println("BlendTest passed (" + (Blend.isSimd() ? "SIMD and scalar" : "scalar only") + ")");
+    }
+
+    /** A translucent color drawn onto a transparent pixel keeps its color and alpha, whatever the format **/
+    private static void translucentOverTransparent() {
+        for (int format : FORMATS) {
+            if (format == Screen.FORMAT_RGB) continue;
+            for (int mode : new int[] { Screen.BLEND_SOURCE_OVER, Screen.BLEND_ADD, Screen.BLEND_MULTIPLY }) {
+                final Screen screen = new Screen(1, 1, format);
+                screen.blend(mode);
+                screen.setPixel(0, 0, 0x80ff0000);
+                check(screen.getPixelArgb(0, 0), 0x80ff0000, "0x80ff0000 over transparent, format " + format + ", mode " + mode);
+            }
+        }
+
+        check(Blend.blend(0x00000000, 0x80ff0000, Screen.BLEND_SOURCE_OVER), 0x80ff0000, "source over transparent black");
+        check(Blend.blend(0x0000ff00, 0x40123456, Screen.BLEND_SOURCE_OVER), 0x40123456, "source over transparent green");
+        // both halves weighted by their alpha: red 128 * 255 vs blue 128 * 127, out of 128 * 255 + 128 * 127
+        check(Blend.blend(0x800000ff, 0x80ff0000, Screen.BLEND_SOURCE_OVER), 0xc0aa0055, "source over half transparent");
+        check(Blend.blend(0x0000ff00, 0x40123456, Screen.BLEND_MULTIPLY), 0x40123456, "multiply over transparent green");
+        // multiplying red by blue gives black, but each one shows through where the other is transparent
+        check(Blend.blend(0x800000ff, 0x80ff0000, Screen.BLEND_MULTIPLY), 0xc0550055, "multiply over half transparent");
+        check(Blend.toArgb(Blend.blend(Blend.premultiply(0x800000ff), Blend.premultiply(0x80ff0000), Screen.BLEND_MULTIPLY, Screen.FORMAT_ARGB_PRE),
+            Screen.FORMAT_ARGB_PRE), 0xc0550055, "premultiplied multiply over half transparent");
+    }
+
+    /** Over opaque pixels, every format blends to the same colors **/
+    private static void translucentOverOpaque() {
+        for (int mode : new int[] { Screen.BLEND_SOURCE_OVER, Screen.BLEND_ADD, Screen.BLEND_MULTIPLY }) {
+            final int straight = Blend.blend(0xff0000ff, 0x80ff0000, mode, Screen.FORMAT_ARGB);
+            check(Blend.blend(0xff0000ff, 0x80ff0000, mode, Screen.FORMAT_RGB), straight, "RGB vs ARGB, mode " + mode);
+            final int premultiplied = Blend.blend(0xff0000ff, Blend.premultiply(0x80ff0000), mode, Screen.FORMAT_ARGB_PRE);
+            check(Blend.toArgb(premultiplied, Screen.FORMAT_ARGB_PRE), straight, "ARGB_PRE vs ARGB, mode " + mode);
+        }
+        check(Blend.blend(0xff0000ff, 0x80ff0000, Screen.BLEND_SOURCE_OVER), 0xff80007f, "source over opaque blue");
+    }
+
+    /** The SIMD kernels give exactly the pixels of the scalar ones, for every format and mode **/
+    private static void simdMatchesScalar() {
+        if (!Blend.isSimd()) return;
+
+        final Random random = new Random(0);
+        final int length = 4099;
+        for (int format : FORMATS) {
+            for (int mode : MODES) {
+                final int[] src = new int[length];
+                final int[] dst = new int[length];
+                for (int i = 0; i < length; i++) {
+                    src[i] = Blend.toFormat(pixel(random), format);
+                    dst[i] = Blend.toFormat(pixel(random), format);
+                }
+                // opaque rows take their own SIMD path
+                for (int i = 0; i < length / 4; i++) {
+                    dst[i] |= 0xff000000;
+                }
+
+                final int[] expected = dst.clone();
+                for (int i = 0; i < length; i++) {
+                    expected[i] = Blend.blend(expected[i], src[i], mode, format);
+                }
+                final int[] actual = dst.clone();
+                BlendSimd.blit(src, 0, actual, 0, length, mode, format, false);
+                for (int i = 0; i < length; i++) {
+                    check(actual[i], expected[i], "SIMD blit of " + Integer.toHexString(src[i]) + " over "
+                        + Integer.toHexString(dst[i]) + ", format " + format + ", mode " + mode);
+                }
+
+                final int color = src[0];
+                final int[] filled = dst.clone();
+                BlendSimd.fill(filled, 0, length, color, mode, format);
+                for (int i = 0; i < length; i++) {
+                    check(filled[i], Blend.blend(dst[i], color, mode, format), "SIMD fill, format " + format + ", mode " + mode);
+                }
+            }
+        }
+    }
+
+    /** Returns a random color, often with a fully transparent or opaque alpha **/
+    private static int pixel(Random random) {
+        final int color = random.nextInt();
+        switch (random.nextInt(4)) {
+            case 0:
+                return color & 0x00ffffff;
+            case 1:
+                return color | 0xff000000;
+            default:
+                return color;
+        }
+    }
+
+    private static void check(int actual, int expected, String message) {
+        if (actual != expected) {
+            throw new AssertionError(message + ": expected 0x" + Integer.toHexString(expected) + ", got 0x" + Integer.toHexString(actual));
+        }
+    }
+}
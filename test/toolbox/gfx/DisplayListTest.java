@@ -0,0 +1,111 @@
+package toolbox.gfx;
+
+import java.util.Arrays;
+
+/**
+ * Checks display lists: drawn on a parallel screen they give the pixels of a serial one,
+ * drawn while recording another list they are recorded into it, and overlays cannot be recorded
+ * Run with: java -cp <classes> toolbox.gfx.DisplayListTest
+**/
+public class DisplayListTest {
+
+    public static void main(String[] args) {
+        parallelMatchesSerial();
+        drawnWhileRecording();
+        overlays();
+        System.out.println("DisplayListTest passed");
+    }
+
+    /** A rectangle under transformed images and sprites, drawn from a list on a serial and on a parallel screen **/
+    private static void parallelMatchesSerial() {
+        final DisplayList list = record(new Screen(256, 192));
+
+        for (int format : new int[] { Screen.FORMAT_ARGB, Screen.FORMAT_RGB, Screen.FORMAT_ARGB_PRE }) {
+            final Screen serial = new Screen(256, 192, format);
+            final Screen parallel = new Screen(256, 192, format);
+            parallel.parallel(true);
+            for (Screen screen : new Screen[] { serial, parallel }) {
+                screen.clear(0xff102030);
+                screen.draw(list);
+            }
+
+            if (!Arrays.equals(serial.getPixels(), parallel.getPixels())) {
+                throw new AssertionError("Parallel display list drawing differs from the serial one, format " + format);
+            }
+        }
+    }
+
+    /** A list drawn while recording another one is recorded too, nothing is drawn until that one is drawn **/
+    private static void drawnWhileRecording() {
+        final DisplayList inner = record(new Screen(256, 192));
+
+        final Screen screen = new Screen(256, 192);
+        final DisplayList outer = new DisplayList();
+        screen.beginRecording(outer);
+        screen.draw(inner);
+        screen.endRecording();
+
+        for (int pixel : screen.getPixels()) {
+            if (pixel != 0) {
+                throw new AssertionError("Drawing a display list while recording another one drew into the screen");
+            }
+        }
+
+        final Screen expected = new Screen(256, 192);
+        expected.draw(inner);
+        screen.draw(outer);
+        if (!Arrays.equals(expected.getPixels(), screen.getPixels())) {
+            throw new AssertionError("A display list recorded inside another one is not drawn the same");
+        }
+    }
+
+    /** Overlays are drawn over what parallel rendering has waiting, and rejected while recording instead of being lost **/
+    private static void overlays() {
+        final Screen other = new Screen(8, 8);
+        other.clear(0xff00ff00);
+
+        final Screen screen = new Screen(128, 128);
+        screen.parallel(true);
+        screen.fill(0xffff0000);
+        screen.rectangle(0, 0, 127, 127);
+        screen.overlay(other, 60, 60, 0, 7, 0, 7);
+        if (screen.getPixelArgb(64, 64) != 0xff00ff00) {
+            throw new AssertionError("An overlay was painted over by the draw calls recorded before it");
+        }
+
+        screen.beginRecording(new DisplayList());
+        try {
+            screen.overlay(other, 0, 0, 0, 7, 0, 7);
+            throw new AssertionError("An overlay was drawn while recording a display list");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            screen.endRecording();
+        }
+    }
+
+    /** Records a translucent rectangle, then rotated, scaled and flipped images and sprites over it **/
+    private static DisplayList record(Screen screen) {
+        final int[] pixels = new int[32 * 24];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i * 0x9e3779b9) | (i % 3 == 0 ? 0xff000000 : 0x80000000);
+        }
+        final Image image = new Image(32, 24, pixels);
+        final SpriteAtlas atlas = SpriteAtlas.fromGrid(image, 16, 12);
+
+        final DisplayList list = new DisplayList();
+        screen.beginRecording(list);
+        screen.blend(Screen.BLEND_SOURCE_OVER);
+        screen.fill(0xc0ff8000);
+        screen.outlines(0xff000000);
+        screen.rectangle(10, 10, 200, 150);
+        screen.image(image, 128f, 96f, 2.5f, 0.6f);
+        screen.filter(Screen.FILTER_BILINEAR);
+        screen.image(image, 60f, 140f, 1.5f, 3f, -1.2f, 4f, 20f, Screen.FLIP_HORIZONTAL);
+        screen.sprite(atlas, 3, 220f, 40f, 4f, 2.2f);
+        screen.filter(Screen.FILTER_NEAREST);
+        screen.sprite(atlas, 1, 20f, 170f, 3f, 3f, 0.3f, 0f, 0f, Screen.FLIP_VERTICAL);
+        screen.endRecording();
+        return list;
+    }
+}
@@ -0,0 +1,70 @@
+package toolbox.gfx;
+
+/**
+ * Checks the colors a LayerStack composites: a translucent layer over an opaque one, in every target format
+ * Run with: java -cp <classes> toolbox.gfx.LayerStackTest
+**/
+public class LayerStackTest {
+
+    private static final int[] FORMATS = { Screen.FORMAT_ARGB, Screen.FORMAT_RGB, Screen.FORMAT_ARGB_PRE };
+
+    private static final int BLUE = 0xff0000ff;
+    private static final int HALF_RED = 0x80ff0000;
+    // half red over blue
+    private static final int PURPLE = 0xff80007f;
+
+    public static void main(String[] args) {
+        for (int format : FORMATS) {
+            translucentLayerOverOpaqueLayer(format);
+            opacityOverOpaqueLayer(format);
+        }
+        translucentLayerAlone();
+        System.out.println("LayerStackTest passed");
+    }
+
+    /** A half transparent red layer, drawn by blending onto its transparent pixels, over an opaque blue one **/
+    private static void translucentLayerOverOpaqueLayer(int format) {
+        final LayerStack stack = new LayerStack();
+        stack.add(4, 4).getScreen().clear(BLUE);
+        final Screen red = stack.add(4, 4).getScreen();
+        red.blend(Screen.BLEND_SOURCE_OVER);
+        red.fill(HALF_RED);
+        red.disableOutlines();
+        red.rectangle(0, 0, 3, 3);
+
+        final Screen target = new Screen(4, 4, format);
+        stack.composite(target);
+        check(target.getPixelArgb(1, 1), PURPLE, "half red layer over blue, format " + format);
+    }
+
+    /** An opaque red layer at half opacity over an opaque blue one **/
+    private static void opacityOverOpaqueLayer(int format) {
+        final LayerStack stack = new LayerStack();
+        stack.add(4, 4).getScreen().clear(BLUE);
+        final Layer red = stack.add(4, 4);
+        red.getScreen().clear(0xffff0000);
+        red.setOpacity(128);
+
+        final Screen target = new Screen(4, 4, format);
+        stack.composite(target);
+        check(target.getPixelArgb(2, 2), PURPLE, "red layer at half opacity over blue, format " + format);
+    }
+
+    /** With nothing below it, a translucent layer keeps its color **/
+    private static void translucentLayerAlone() {
+        final LayerStack stack = new LayerStack();
+        final Screen red = stack.add(4, 4).getScreen();
+        red.blend(Screen.BLEND_SOURCE_OVER);
+        red.setPixel(0, 0, HALF_RED);
+
+        final Screen target = new Screen(4, 4);
+        stack.composite(target);
+        check(target.getPixelArgb(0, 0), HALF_RED, "half red layer over nothing");
+    }
+
+    private static void check(int actual, int expected, String message) {
+        if (actual != expected) {
+            throw new AssertionError(message + ": expected 0x" + Integer.toHexString(expected) + ", got 0x" + Integer.toHexString(actual));
+        }
+    }
+}
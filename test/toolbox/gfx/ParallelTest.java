@@ -0,0 +1,132 @@
+package toolbox.gfx;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks parallel rendering: a random scene mixing every primitive, state change and blend mode gives exactly the pixels
+ * of the serial one, in every format (including the draw order where primitives overlap across tiles)
+ * Run with: java -cp <classes> toolbox.gfx.ParallelTest
+**/
+public class ParallelTest {
+
+    private static final int[] FORMATS = { Screen.FORMAT_ARGB, Screen.FORMAT_RGB, Screen.FORMAT_ARGB_PRE };
+    private static final int[] MODES = { Screen.BLEND_REPLACE, Screen.BLEND_SOURCE_OVER, Screen.BLEND_ADD, Screen.BLEND_MULTIPLY };
+
+    // not a multiple of the tile size, so the last tiles are cut
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    public static void main(String[] args) {
+        for (int format : FORMATS) {
+            for (int seed = 0; seed < 8; seed++) {
+                mixedScene(format, seed);
+            }
+        }
+        System.out.println("ParallelTest passed");
+    }
+
+    /** Draws the same random scene on a serial and on a parallel screen **/
+    private static void mixedScene(int format, int seed) {
+        final Screen serial = new Screen(WIDTH, HEIGHT, format);
+        final Screen parallel = new Screen(WIDTH, HEIGHT, format);
+        parallel.parallel(true);
+
+        for (Screen screen : new Screen[] { serial, parallel }) {
+            draw(screen, new Random(seed));
+        }
+
+        final int[] expected = serial.getPixels();
+        final int[] actual = parallel.getPixels();
+        if (!Arrays.equals(expected, actual)) {
+            int i = 0;
+            while (expected[i] == actual[i]) i++;
+            throw new AssertionError("Parallel rendering differs from the serial one, format " + format + ", seed " + seed
+                + ", first at column " + (i % WIDTH) + ", row " + (i / WIDTH) + ": expected 0x"
+                + Integer.toHexString(expected[i]) + ", got 0x" + Integer.toHexString(actual[i]));
+        }
+    }
+
+    /** Draws a few hundred random primitives, changing the state in between **/
+    private static void draw(Screen screen, Random random) {
+        final int[] pixels = new int[24 * 16];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = color(random);
+        }
+        final Image image = new Image(24, 16, pixels);
+        final SpriteAtlas atlas = SpriteAtlas.fromGrid(image, 12, 8);
+
+        screen.clear(0xff203040);
+        for (int i = 0; i < 400; i++) {
+            switch (random.nextInt(12)) {
+                case 0:
+                    screen.blend(MODES[random.nextInt(MODES.length)]);
+                    screen.fill(color(random));
+                    screen.outlines(color(random));
+                    break;
+                case 1:
+                    screen.stroke(1 + random.nextInt(4));
+                    screen.brush(random.nextInt(3));
+                    screen.filter(random.nextInt(2));
+                    break;
+                case 2:
+                    screen.translate(random.nextInt(80) - 40, random.nextInt(80) - 40);
+                    break;
+                case 3:
+                    screen.rectangle(x(random), y(random), x(random), y(random));
+                    break;
+                case 4:
+                    screen.line(x(random), y(random), x(random), y(random), color(random));
+                    break;
+                case 5:
+                    screen.circle(x(random), y(random), random.nextInt(60));
+                    break;
+                case 6:
+                    screen.ellipse(x(random), y(random), 1 + random.nextInt(80), 1 + random.nextInt(40));
+                    break;
+                case 7:
+                    screen.triangle(x(random) + random.nextFloat(), y(random) + random.nextFloat(), x(random) + random.nextFloat(),
+                        y(random) + random.nextFloat(), x(random) + random.nextFloat(), y(random) + random.nextFloat());
+                    break;
+                case 8:
+                    screen.point(x(random), y(random), 1 + random.nextInt(6), color(random));
+                    screen.setPixel(random.nextInt(WIDTH), random.nextInt(HEIGHT), color(random));
+                    break;
+                case 9:
+                    screen.image(image, x(random), y(random));
+                    screen.sprite(atlas, random.nextInt(4), x(random), y(random));
+                    break;
+                case 10:
+                    screen.image(image, x(random), y(random), 0.5f + 3 * random.nextFloat(), 0.5f + 3 * random.nextFloat(),
+                        6 * random.nextFloat(), 24 * random.nextFloat(), 16 * random.nextFloat(), random.nextInt(4));
+                    break;
+                default:
+                    if (random.nextInt(4) == 0) {
+                        screen.push();
+                        screen.disableFill();
+                        screen.rectangle(x(random), y(random), x(random), y(random));
+                        screen.pop();
+                    } else {
+                        screen.sprite(atlas, random.nextInt(4), x(random), y(random), 1 + random.nextFloat(), 3 * random.nextFloat());
+                    }
+                    break;
+            }
+        }
+    }
+
+    /** Returns a random x coordinate, sometimes outside the screen **/
+    private static int x(Random random) {
+        return random.nextInt(WIDTH + 80) - 40;
+    }
+
+    /** Returns a random y coordinate, sometimes outside the screen **/
+    private static int y(Random random) {
+        return random.nextInt(HEIGHT + 80) - 40;
+    }
+
+    /** Returns a random color, opaque half of the time **/
+    private static int color(Random random) {
+        final int color = random.nextInt();
+        return random.nextBoolean() ? color | 0xff000000 : color;
+    }
+}
@@ -0,0 +1,205 @@
+package toolbox.gfx;
+
+import java.util.Random;
+
+/**
+ * Checks the rasterizers: shapes and lines partly outside the screen give the pixels of the same shapes drawn whole on a bigger screen,
+ * and triangles sharing edges (top-left rule) cover every pixel once
+ * Pixels are counted by adding 1 to the blue channel of a black screen, so pixels drawn twice show up too
+ * Run with: java -cp <classes> toolbox.gfx.RasterTest
+**/
+public class RasterTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    // the bigger screen has this margin on every side, the shapes drawn fit in it
+    private static final int MARGIN = 300;
+
+    private static final int COUNT = 0xff000001;
+
+    public static void main(String[] args) {
+        ellipseSpans();
+        clippedShapes();
+        clippedLines();
+        sharedEdges();
+        topLeftRule();
+        System.out.println("RasterTest passed");
+    }
+
+    /** An ellipse covers exactly the pixels with x^2 * b^2 + y^2 * a^2 < a^2 * b^2, each one once **/
+    private static void ellipseSpans() {
+        final Screen screen = counter(WIDTH, HEIGHT);
+        screen.ellipse(30, 20, 25, 13);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final long dx = x - 30, dy = y - 20;
+                final boolean inside = dx * dx * 13 * 13 + dy * dy * 25 * 25 < 25L * 25 * 13 * 13;
+                check(count(screen, x, y), inside ? 1 : 0, "ellipse at (" + x + ", " + y + ")");
+            }
+        }
+    }
+
+    /** Rectangles, circles and ellipses cut by the screen bounds are the same as inside the bigger screen **/
+    private static void clippedShapes() {
+        final Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            final int x0 = coordinate(random, WIDTH), y0 = coordinate(random, HEIGHT);
+            final int x1 = coordinate(random, WIDTH), y1 = coordinate(random, HEIGHT);
+            final int radius = random.nextInt(80);
+            final int stroke = 1 + random.nextInt(4);
+            final int shape = i % 3;
+
+            final Screen clipped = counter(WIDTH, HEIGHT);
+            final Screen whole = counter(WIDTH + 2 * MARGIN, HEIGHT + 2 * MARGIN);
+            whole.translate(MARGIN, MARGIN);
+            for (Screen screen : new Screen[] { clipped, whole }) {
+                screen.outlines(COUNT);
+                screen.stroke(stroke);
+                if (shape == 0) {
+                    screen.rectangle(x0, y0, x1, y1);
+                } else if (shape == 1) {
+                    screen.circle(x0, y0, radius);
+                } else {
+                    screen.ellipse(x0, y0, radius + 1, 1 + Math.abs(y1 - y0));
+                }
+            }
+            compare(clipped, whole, "shape " + shape + " at (" + x0 + ", " + y0 + "), (" + x1 + ", " + y1 + "), radius " + radius);
+        }
+    }
+
+    /** Lines, thin and thick, hit exactly the pixels inside the screen they hit inside the bigger one **/
+    private static void clippedLines() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            final int x0 = coordinate(random, WIDTH), y0 = coordinate(random, HEIGHT);
+            final int x1 = coordinate(random, WIDTH), y1 = coordinate(random, HEIGHT);
+            final int stroke = i % 4 == 0 ? 2 + random.nextInt(4) : 1;
+
+            final Screen clipped = counter(WIDTH, HEIGHT);
+            final Screen whole = counter(WIDTH + 2 * MARGIN, HEIGHT + 2 * MARGIN);
+            whole.translate(MARGIN, MARGIN);
+            for (Screen screen : new Screen[] { clipped, whole }) {
+                screen.stroke(stroke);
+                screen.line(x0, y0, x1, y1, COUNT);
+            }
+            compare(clipped, whole, "line (" + x0 + ", " + y0 + ") to (" + x1 + ", " + y1 + "), stroke " + stroke);
+        }
+    }
+
+    /**
+     * Triangles sharing edges cover no pixel twice and leave no gaps: a jittered grid of quads, each split in two
+     * along a diagonal with random windings, covers every pixel of the screen exactly once
+    **/
+    private static void sharedEdges() {
+        final Random random = new Random(4);
+        final int cell = 10;
+        final int columns = WIDTH / cell + 3;
+        final int rows = HEIGHT / cell + 3;
+        for (int i = 0; i < 200; i++) {
+            // vertices on whole pixels first, then anywhere
+            final boolean whole = i < 50;
+            final float[][] xs = new float[columns + 1][rows + 1];
+            final float[][] ys = new float[columns + 1][rows + 1];
+            for (int c = 0; c <= columns; c++) {
+                for (int r = 0; r <= rows; r++) {
+                    final float jitterX = whole ? random.nextInt(7) - 3 : random.nextFloat() * 7 - 3.5f;
+                    final float jitterY = whole ? random.nextInt(7) - 3 : random.nextFloat() * 7 - 3.5f;
+                    // the border vertices stay outside the screen so the whole screen is covered
+                    xs[c][r] = (c - 1) * cell + (c == 0 || c == columns ? 0 : jitterX);
+                    ys[c][r] = (r - 1) * cell + (r == 0 || r == rows ? 0 : jitterY);
+                }
+            }
+
+            final Screen screen = counter(WIDTH, HEIGHT);
+            screen.disableOutlines();
+            for (int c = 0; c < columns; c++) {
+                for (int r = 0; r < rows; r++) {
+                    final float ax = xs[c][r], ay = ys[c][r];
+                    final float bx = xs[c + 1][r], by = ys[c + 1][r];
+                    final float cx = xs[c + 1][r + 1], cy = ys[c + 1][r + 1];
+                    final float dx = xs[c][r + 1], dy = ys[c][r + 1];
+                    // the jitter can make a quad concave, then only the diagonal inside it splits it without overlaps
+                    final boolean acInside = side(ax, ay, cx, cy, bx, by) * side(ax, ay, cx, cy, dx, dy) < 0;
+                    final boolean bdInside = side(bx, by, dx, dy, ax, ay) * side(bx, by, dx, dy, cx, cy) < 0;
+                    if (acInside && (!bdInside || random.nextBoolean())) {
+                        triangle(screen, random, ax, ay, bx, by, cx, cy);
+                        triangle(screen, random, ax, ay, cx, cy, dx, dy);
+                    } else {
+                        triangle(screen, random, ax, ay, bx, by, dx, dy);
+                        triangle(screen, random, bx, by, cx, cy, dx, dy);
+                    }
+                }
+            }
+
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    check(count(screen, x, y), 1, "triangle mesh " + i + ", pixel (" + x + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    /** A square made of two triangles, with its edges on pixel centers, keeps the pixels of its top and left edges only (y-up) **/
+    private static void topLeftRule() {
+        final Screen screen = counter(8, 8);
+        screen.disableOutlines();
+        screen.triangle(2, 2, 6, 2, 6, 6);
+        screen.triangle(2, 2, 6, 6, 2, 6);
+
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                final boolean inside = x >= 2 && x < 6 && y > 2 && y <= 6;
+                check(count(screen, x, y), inside ? 1 : 0, "square at (" + x + ", " + y + ")");
+            }
+        }
+    }
+
+    /** Draws the given triangle, wound one way or the other **/
+    private static void triangle(Screen screen, Random random, float ax, float ay, float bx, float by, float cx, float cy) {
+        if (random.nextBoolean()) {
+            screen.triangle(ax, ay, bx, by, cx, cy);
+        } else {
+            screen.triangle(cx, cy, bx, by, ax, ay);
+        }
+    }
+
+    /** Returns which side of the line through a and b the point p is on (the sign of the cross product) **/
+    private static float side(float ax, float ay, float bx, float by, float px, float py) {
+        return Math.signum((bx - ax) * (py - ay) - (by - ay) * (px - ax));
+    }
+
+    /** Returns a black screen that adds 1 to the blue channel of every pixel drawn **/
+    private static Screen counter(int width, int height) {
+        final Screen screen = new Screen(width, height);
+        screen.clear(0xff000000);
+        screen.blend(Screen.BLEND_ADD);
+        screen.fill(COUNT);
+        return screen;
+    }
+
+    /** Returns how many times the given pixel has been drawn **/
+    private static int count(Screen screen, int x, int y) {
+        return screen.getPixelArgb(x, y) & 0xff;
+    }
+
+    /** Returns a coordinate up to MARGIN outside a screen side of the given size **/
+    private static int coordinate(Random random, int size) {
+        return random.nextInt(size + 2 * MARGIN) - MARGIN;
+    }
+
+    /** Checks every pixel of the clipped screen against the matching one of the bigger screen **/
+    private static void compare(Screen clipped, Screen whole, String message) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                check(count(clipped, x, y), count(whole, x + MARGIN, y + MARGIN), message + ", pixel (" + x + ", " + y + ")");
+            }
+        }
+    }
+
+    private static void check(int actual, int expected, String message) {
+        if (actual != expected) {
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
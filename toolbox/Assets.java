@@ -0,0 +1,294 @@
+package toolbox;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import toolbox.gfx.Image;
+import toolbox.utils.FileHandler;
+
+/**
+ * Shared cache of the images, sounds and texts loaded from files, keyed by their absolute path
+ * Every asset is read and decoded once: later requests (from any thread, even while it is still loading) get the cached one
+ * Assets are loaded on the calling thread, or in the background on all cores by the *Async() and preload() methods
+ *
+ * The cache holds at most getBudget() bytes of loaded assets: past it, the least recently requested ones are dropped
+ * (the objects already handed out stay valid, the next request loads the file again)
+ * Cached images are shared by everyone requesting them, they must not be drawn into: copy the pixels first to change them
+ * Sounds share their decoded samples, but every sound() call returns a new Sound with its own clip
+**/
+public final class Assets {
+
+    public static final int TYPE_IMAGE = 0;
+    public static final int TYPE_SOUND = 1;
+    public static final int TYPE_TEXT = 2;
+
+    private static final String[] TYPE_NAMES = { "image", "sound", "text" };
+
+    // rough size in bytes of an object header and an array header, to size small assets
+    private static final int OBJECT_BYTES = 64;
+
+    private static final ExecutorService LOADERS = Executors.newFixedThreadPool(
+        Math.max(1, Runtime.getRuntime().availableProcessors()),
+        runnable -> {
+            final Thread thread = new Thread(runnable, "Asset loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    );
+
+    // every asset loaded or loading, from the least recently requested one (guarded by the class lock)
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private static long budget = Runtime.getRuntime().maxMemory() / 4;
+    // bytes of the loaded assets
+    private static long size = 0;
+
+    private Assets() {}
+
+    // ASSETS
+
+    /** Returns the image at the given path, loading it on this thread if it is not cached (shared, do not change its pixels) **/
+    public static Image image(String path) {
+        return (Image) get(TYPE_IMAGE, path);
+    }
+
+    /** Returns a new sound playing the samples of the file at the given path, loading them on this thread if they are not cached **/
+    public static Sound sound(String path) {
+        return new Sound((SoundData) get(TYPE_SOUND, path));
+    }
+
+    /** Returns the content of the text file at the given path, loading it on this thread if it is not cached **/
+    public static String text(String path) {
+        return (String) get(TYPE_TEXT, path);
+    }
+
+    /** Returns the image at the given path, loaded in the background if it is not cached **/
+    public static CompletableFuture<Image> imageAsync(String path) {
+        return load(TYPE_IMAGE, path, true).thenApply(Image.class::cast);
+    }
+
+    /** Returns a new sound playing the samples of the file at the given path, loaded in the background if they are not cached **/
+    public static CompletableFuture<Sound> soundAsync(String path) {
+        return load(TYPE_SOUND, path, true).thenApply(data -> new Sound((SoundData) data));
+    }
+
+    /** Returns the content of the text file at the given path, loaded in the background if it is not cached **/
+    public static CompletableFuture<String> textAsync(String path) {
+        return load(TYPE_TEXT, path, true).thenApply(String.class::cast);
+    }
+
+    /**
+     * Loads the asset at the given path in the background if it is not cached, its type being guessed from the file extension
+     * (a raw image file or an image ImageIO can read, a sound AudioSystem can read, or a text file otherwise)
+    **/
+    public static CompletableFuture<?> preload(String path) {
+        return load(typeOf(path), path, true);
+    }
+
+    /** Loads every asset at the given paths in parallel in the background (see preload() above) **/
+    public static CompletableFuture<Void> preloadAll(String... paths) {
+        return CompletableFuture.allOf(Arrays.stream(paths).map(Assets::preload).toArray(CompletableFuture[]::new));
+    }
+
+    /** Returns the asset type (one of the TYPE_* constants) preload() loads the file at the given path as **/
+    public static int typeOf(String path) {
+        final int dot = path.lastIndexOf('.');
+        final String extension = dot < 0 ? "" : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+        if (Image.RAW_EXTENSION.equals("." + extension)) return TYPE_IMAGE;
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            if (suffix.equalsIgnoreCase(extension)) return TYPE_IMAGE;
+        }
+        for (AudioFileFormat.Type type : AudioSystem.getAudioFileTypes()) {
+            if (type.getExtension().equalsIgnoreCase(extension)) return TYPE_SOUND;
+        }
+        return TYPE_TEXT;
+    }
+
+    // CACHE
+
+    /** Sets how many bytes of loaded assets the cache holds at most, dropping the least recently requested ones past it **/
+    public static synchronized void setBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid asset cache budget: " + bytes);
+        }
+        budget = bytes;
+        evict(null);
+    }
+
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /** Returns the bytes held by the loaded assets of the cache **/
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    /** Drops the assets of every type at the given path from the cache **/
+    public static synchronized void remove(String path) {
+        for (int type = TYPE_IMAGE; type <= TYPE_TEXT; type++) {
+            final Entry entry = ENTRIES.remove(key(type, path));
+            if (entry != null) {
+                size -= entry.bytes;
+            }
+        }
+    }
+
+    /** Drops every loaded asset from the cache **/
+    public static synchronized void clear() {
+        evict(0, null);
+    }
+
+    // LOADING
+
+    /** Returns the asset of the given type at the given path, loaded on this thread if needed, or throws the failure as an IllegalArgumentException **/
+    private static Object get(int type, String path) {
+        try {
+            return load(type, path, false).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /** Returns the future of the asset of the given type at the given path, loading it (in the background if async is true) if it is not cached **/
+    private static CompletableFuture<Object> load(int type, String path, boolean async) {
+        final String key = key(type, path);
+        final Entry entry;
+        synchronized (Assets.class) {
+            final Entry cached = ENTRIES.get(key);
+            if (cached != null) return cached.future;
+
+            entry = new Entry();
+            ENTRIES.put(key, entry);
+        }
+
+        final Function<String, Object> loader = loader(type);
+        if (async) {
+            LOADERS.execute(() -> complete(key, entry, loader, path));
+        } else {
+            complete(key, entry, loader, path);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Loads the asset of the given entry and completes its future (a failed asset is not kept in the cache)
+     * Errors (such as running out of memory) also fail the future, so that nothing waits for it forever, and are thrown again
+    **/
+    private static void complete(String key, Entry entry, Function<String, Object> loader, String path) {
+        final Object asset;
+        try {
+            asset = loader.apply(path);
+        } catch (Throwable e) {
+            synchronized (Assets.class) {
+                ENTRIES.remove(key, entry);
+            }
+            entry.future.completeExceptionally(e);
+            if (e instanceof RuntimeException) return;
+            throw e;
+        }
+
+        synchronized (Assets.class) {
+            entry.loaded = true;
+            entry.bytes = sizeOf(asset);
+            // the entry may have been dropped while loading, by remove() or clear()
+            if (ENTRIES.get(key) == entry) {
+                size += entry.bytes;
+                evict(entry);
+            }
+        }
+        entry.future.complete(asset);
+    }
+
+    private static Function<String, Object> loader(int type) {
+        switch (type) {
+            case TYPE_IMAGE:
+                return Assets::loadImage;
+            case TYPE_SOUND:
+                return Assets::loadSound;
+            case TYPE_TEXT:
+                return Assets::loadText;
+            default:
+                throw new IllegalArgumentException("Unknown asset type: " + type);
+        }
+    }
+
+    /** Maps raw image files (see Image.RAW_EXTENSION), decodes any other image **/
+    private static Image loadImage(String path) {
+        return path.toLowerCase(Locale.ROOT).endsWith(Image.RAW_EXTENSION) ? Image.map(path) : new Image(path);
+    }
+
+    private static SoundData loadSound(String path) {
+        try (AudioInputStream stream = AudioSystem.getAudioInputStream(new File(path))) {
+            final AudioFormat format = stream.getFormat();
+            return new SoundData(format, stream.readAllBytes());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Could not load the sound " + path, e);
+        }
+    }
+
+    private static String loadText(String path) {
+        final String text = FileHandler.loadText(path);
+        if (text == null) {
+            throw new IllegalArgumentException("Could not load the text " + path);
+        }
+        return text;
+    }
+
+    // EVICTION
+
+    /** Drops the least recently requested loaded assets, but the given entry, until the cache fits in its budget **/
+    private static void evict(Entry keep) {
+        evict(budget, keep);
+    }
+
+    private static void evict(long bytes, Entry keep) {
+        final Iterator<Entry> entries = ENTRIES.values().iterator();
+        while (size > bytes && entries.hasNext()) {
+            final Entry entry = entries.next();
+            // assets still loading are not counted yet, and are needed soon
+            if (entry == keep || !entry.loaded) continue;
+            entries.remove();
+            size -= entry.bytes;
+        }
+    }
+
+    private static long sizeOf(Object asset) {
+        // mapped pixels are in the OS page cache, not in the heap
+        if (asset instanceof Image image) return image.isMapped() ? OBJECT_BYTES : OBJECT_BYTES + 4L * image.getWidth() * image.getHeight();
+        if (asset instanceof SoundData sound) return OBJECT_BYTES + sound.data.length;
+        return OBJECT_BYTES + 2L * ((String) asset).length();
+    }
+
+    private static String key(int type, String path) {
+        if (type < TYPE_IMAGE || type > TYPE_TEXT) {
+            throw new IllegalArgumentException("Unknown asset type: " + type);
+        }
+        return TYPE_NAMES[type] + ":" + new File(path).getAbsoluteFile().toPath().normalize();
+    }
+
+    /** A cached asset, loaded once its future is complete **/
+    private static final class Entry {
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+        // written under the class lock
+        boolean loaded = false;
+        long bytes = 0;
+    }
+
+    /** Decoded samples of a sound file **/
+    record SoundData(AudioFormat format, byte[] data) {}
+}
@@ -0,0 +1,354 @@
+package toolbox;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
+
+import javax.imageio.ImageIO;
+
+import toolbox.gfx.Screen;
+import toolbox.utils.Console;
+
+/**
+ * Records frames in the background: capture() copies the pixels into a preallocated ring of frame buffers
+ * and encoder threads write them out, so recording costs the loop a single array copy per frame
+ * Frames are always written as straight ARGB pixels: premultiplied ones are converted by the encoder threads
+ * When every buffer of the ring is still waiting to be written, the frame is dropped (POLICY_DROP)
+ * or capture() waits for a free buffer (POLICY_BLOCK)
+ *
+ * Formats:
+ * FORMAT_PNG writes frame_000000.png, frame_000001.png ... into the given directory, encoded in parallel
+ * FORMAT_RAW and FORMAT_DELTA write a single stream file, encoded on one thread (read it with readStream()):
+ * a header (int 'TBFR', int format, int width, int height) followed by the frames, each one starting with its int index
+ * Raw frames hold width * height ARGB ints, delta frames hold an int run count and then, for every run,
+ * the int amount of pixels left as in the previous frame, the int amount of pixels that follow and those ARGB ints
+ * (all values big endian, pixels row by row from the top one)
+**/
+public class FrameRecorder {
+
+    public static final int FORMAT_PNG = 0;
+    public static final int FORMAT_RAW = 1;
+    public static final int FORMAT_DELTA = 2;
+
+    public static final int POLICY_DROP = 0; // frames captured while the ring is full are dropped
+    public static final int POLICY_BLOCK = 1; // capture() waits for the encoders when the ring is full
+
+    private static final int MAGIC = 0x54424652; // "TBFR"
+
+    // changed pixels closer than this are written in the same delta run (a run header costs 2 ints)
+    private static final int DELTA_RUN_GAP = 3;
+
+    private final String path;
+    private final int format;
+    private final int policy;
+    private final int width, height;
+
+    // free frame buffers of the ring
+    private final ArrayBlockingQueue<int[]> freeBuffers;
+    private final int ringSize;
+    private final ExecutorService encoders;
+
+    // stream formats only (used by the single encoder thread)
+    private OutputStream stream;
+    private ByteBuffer streamBuffer;
+    private int[] previousFrame;
+
+    // PNG only, one image per encoder thread
+    private final ThreadLocal<BufferedImage> pngImages;
+
+    // only written by capture(), volatile so that they can be read while capture() waits
+    private volatile long capturedFrames = 0;
+    private volatile long droppedFrames = 0;
+    private final AtomicLong writtenFrames = new AtomicLong();
+    private volatile boolean failed = false;
+    private boolean stopped = false;
+
+    /**
+     * Creates a recorder of width x height frames writing to the given path (a directory for FORMAT_PNG, a file otherwise),
+     * keeping at most ringSize frames waiting to be written
+    **/
+    public FrameRecorder(String path, int format, int width, int height, int ringSize, int policy) {
+        if (format < FORMAT_PNG || format > FORMAT_DELTA || policy < POLICY_DROP || policy > POLICY_BLOCK || ringSize < 1) {
+            throw new IllegalArgumentException("Invalid frame recorder parameters");
+        }
+
+        this.path = path;
+        this.format = format;
+        this.policy = policy;
+        this.width = width;
+        this.height = height;
+        this.ringSize = ringSize;
+
+        freeBuffers = new ArrayBlockingQueue<int[]>(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            freeBuffers.add(new int[width * height]);
+        }
+
+        final int threads = format == FORMAT_PNG ? Math.max(1, Runtime.getRuntime().availableProcessors() - 1) : 1;
+        encoders = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "Frame encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (format == FORMAT_PNG) {
+            new File(path).mkdirs();
+            pngImages = ThreadLocal.withInitial(() -> new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+        } else {
+            pngImages = null;
+            try {
+                stream = new BufferedOutputStream(new FileOutputStream(path), 1 << 16);
+                streamBuffer = ByteBuffer.allocate(16 + width * height * 4);
+                streamBuffer.putInt(MAGIC).putInt(format).putInt(width).putInt(height);
+                stream.write(streamBuffer.array(), 0, streamBuffer.position());
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Queues a copy of the given width x height straight ARGB pixels (row 0 is the top one) to be written
+     * Returns false if the frame was dropped (the ring is full with POLICY_DROP, or the recorder is stopped or failed)
+    **/
+    public boolean capture(int[] pixels) {
+        return capture(pixels, Screen.FORMAT_ARGB);
+    }
+
+    /** Same as capture() above, for pixels of the given format (one of the Screen.FORMAT_* constants) **/
+    public synchronized boolean capture(int[] pixels, int pixelFormat) {
+        if (stopped || failed) return false;
+
+        final long frame = capturedFrames++;
+        int[] buffer = freeBuffers.poll();
+        if (buffer == null && policy == POLICY_BLOCK) {
+            try {
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (buffer == null) {
+            droppedFrames++;
+            return false;
+        }
+
+        System.arraycopy(pixels, 0, buffer, 0, buffer.length);
+        final int[] frameBuffer = buffer;
+        encoders.execute(() -> encode(frameBuffer, (int) frame, pixelFormat));
+        return true;
+    }
+
+    /** Stops recording, waiting for every captured frame to be written **/
+    public synchronized void stop() {
+        if (stopped) return;
+        stopped = true;
+
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    // GETTERS
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the amount of frames passed to capture(), dropped ones included **/
+    public long getCapturedFrames() {
+        return capturedFrames;
+    }
+
+    /** Returns the amount of frames dropped because the encoders were falling behind **/
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /** Returns the amount of frames written so far **/
+    public long getWrittenFrames() {
+        return writtenFrames.get();
+    }
+
+    /** Returns the amount of captured frames still waiting to be written (the encoders are falling behind when it reaches the ring size) **/
+    public int getLag() {
+        return ringSize - freeBuffers.size();
+    }
+
+    /** Returns true if writing a frame failed, in which case nothing else is recorded **/
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    // ENCODING
+
+    private void encode(int[] buffer, int frame, int pixelFormat) {
+        try {
+            if (!failed) {
+                Screen.toArgb(buffer, pixelFormat);
+                if (format == FORMAT_PNG) {
+                    encodePng(buffer, frame);
+                } else {
+                    encodeStream(buffer, frame);
+                }
+                writtenFrames.incrementAndGet();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            freeBuffers.add(buffer);
+        }
+    }
+
+    private void encodePng(int[] buffer, int frame) throws IOException {
+        final BufferedImage image = pngImages.get();
+        System.arraycopy(buffer, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, buffer.length);
+        ImageIO.write(image, "png", new File(path, String.format("frame_%06d.png", frame)));
+    }
+
+    private void encodeStream(int[] buffer, int frame) throws IOException {
+        streamBuffer.clear();
+        streamBuffer.putInt(frame);
+
+        if (format == FORMAT_RAW) {
+            streamBuffer.asIntBuffer().put(buffer);
+            streamBuffer.position(streamBuffer.position() + buffer.length * 4);
+        } else {
+            encodeDelta(buffer);
+        }
+        stream.write(streamBuffer.array(), 0, streamBuffer.position());
+    }
+
+    /** Writes the runs of pixels that differ from the previous frame into the stream buffer **/
+    private void encodeDelta(int[] buffer) {
+        if (previousFrame == null) {
+            // the first frame is a single run of every pixel
+            previousFrame = new int[buffer.length];
+            streamBuffer.putInt(1).putInt(0).putInt(buffer.length);
+            streamBuffer.asIntBuffer().put(buffer);
+            streamBuffer.position(streamBuffer.position() + buffer.length * 4);
+            System.arraycopy(buffer, 0, previousFrame, 0, buffer.length);
+            return;
+        }
+
+        final int countPosition = streamBuffer.position();
+        streamBuffer.putInt(0);
+
+        int runs = 0;
+        int end = 0; // first pixel after the last run
+        int i = 0;
+        while (i < buffer.length) {
+            if (buffer[i] == previousFrame[i]) {
+                i++;
+                continue;
+            }
+
+            // extend the run over changed pixels and short gaps of unchanged ones
+            final int start = i;
+            int last = i;
+            while (i < buffer.length && i - last <= DELTA_RUN_GAP) {
+                if (buffer[i] != previousFrame[i]) last = i;
+                i++;
+            }
+
+            final int length = last - start + 1;
+            ensureStreamCapacity(8 + length * 4);
+            streamBuffer.putInt(start - end).putInt(length);
+            streamBuffer.asIntBuffer().put(buffer, start, length);
+            streamBuffer.position(streamBuffer.position() + length * 4);
+            System.arraycopy(buffer, start, previousFrame, start, length);
+
+            end = last + 1;
+            i = end;
+            runs++;
+        }
+        streamBuffer.putInt(countPosition, runs);
+    }
+
+    private void ensureStreamCapacity(int bytes) {
+        if (streamBuffer.remaining() >= bytes) return;
+
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(streamBuffer.capacity() * 2, streamBuffer.position() + bytes));
+        streamBuffer.flip();
+        grown.put(streamBuffer);
+        streamBuffer = grown;
+    }
+
+    private void fail(IOException e) {
+        if (failed) return;
+        failed = true;
+        Console.error("Frame recording to %s failed: %s", path, e.getMessage());
+    }
+
+    // READING
+
+    /**
+     * Reads a FORMAT_RAW or FORMAT_DELTA stream, passing the pixels and the index of every frame to the given consumer
+     * (the pixels array is reused for the next frame)
+    **/
+    public static void readStream(String path, ObjIntConsumer<int[]> consumer) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a frame stream: " + path);
+            }
+            final int format = input.readInt();
+            final int[] pixels = new int[input.readInt() * input.readInt()];
+
+            while (true) {
+                final int frame;
+                try {
+                    frame = input.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (format == FORMAT_RAW) {
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] = input.readInt();
+                    }
+                } else {
+                    final int runs = input.readInt();
+                    int index = 0;
+                    for (int run = 0; run < runs; run++) {
+                        index += input.readInt();
+                        final int length = input.readInt();
+                        for (int i = 0; i < length; i++) {
+                            pixels[index++] = input.readInt();
+                        }
+                    }
+                }
+                consumer.accept(pixels, frame);
+            }
+        }
+    }
+}
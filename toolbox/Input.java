@@ -8,6 +8,7 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import toolbox.gfx.Screen;
 
@@ -20,9 +21,8 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
     private final int NUM_KEYS = 256;
     private final int NUM_BUTTONS = 5;
 
-    private final int windowHeight;
-    private final int pixelScale;
-    private final Screen screen;
+    private final int windowWidth, windowHeight;
+    private Screen screen;
 
     // there here are used to avoid checking all the keys and buttons everytime
     private ArrayList<Integer> keysToCheck;
@@ -46,9 +46,15 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
 
     private int mouseScroll;
 
+    // events received on the AWT event thread, applied on the sketch thread by processEvents()
+    // so the input state never changes while the sketch is updating
+    private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+    // run on the AWT event thread after every received event (null if none)
+    private volatile Runnable eventListener;
+
     public Input(int windowHeight, int pixelScale, Screen screen) {
+        this.windowWidth = screen.getWidth() * pixelScale;
         this.windowHeight = windowHeight;
-        this.pixelScale = pixelScale;
         this.screen = screen;
 
         keysToCheck = new ArrayList<Integer>();
@@ -136,14 +142,14 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
      * Returns the mouse x position in screen (canvas) space (also takes into account the pixelScale and screen translation)
     **/
     public int getMouseCanvasX() {
-        return getMouseX() / pixelScale + screen.getLeft() - screen.getLeftPadding();
+        return getMouseX() * screen.getWidth() / windowWidth + screen.getLeft() - screen.getLeftPadding();
     }
 
     /**
      * Returns the mouse y position in screen (canvas) space (also takes into account the pixelScale and screen translation)
     **/
     public int getMouseCanvasY() {
-        return getMouseY() / pixelScale + screen.getTop() - screen.getTopPadding();
+        return getMouseY() * screen.getHeight() / windowHeight + screen.getTop() - screen.getTopPadding();
     }
 
     /**
@@ -171,8 +177,34 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
         return mouseScroll;
     }
 
+    /** Sets the screen mouse canvas coordinates refer to, which is shown over the whole window **/
+    void setScreen(Screen screen) {
+        this.screen = screen;
+    }
+
     // INPUT HANDLERS
 
+    /** Applies the events received since the last call. It's an internal function you should not call **/
+    public void processEvents() {
+        Runnable event;
+        while ((event = events.poll()) != null) {
+            event.run();
+        }
+    }
+
+    /** Sets what to run on the AWT event thread whenever an event is received (e.g. waking a throttled sketch) **/
+    void setEventListener(Runnable listener) {
+        eventListener = listener;
+    }
+
+    private void queue(Runnable event) {
+        events.add(event);
+        final Runnable listener = eventListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     /** Updates the input variables. It's an internal function you should not call **/
     public void update() {
         // update keyboard keys
@@ -201,6 +233,7 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
 
     // utils
     private void toggleKey(int key, boolean state) {
+        if (key < 0 || key >= NUM_KEYS) return;
         keysToCheck.add(key);
         if (state) {
             downKeys[key] = true;
@@ -214,6 +247,7 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
     }
 
     private void toggleButton(int button, boolean state) {
+        if (button < 0 || button >= NUM_BUTTONS) return;
         buttonsToCheck.add(button);
         if (state) {
             downButtons[button] = true;
@@ -226,15 +260,26 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
         }
     }
 
+    private void moveMouse(int x, int y) {
+        mouseX = x;
+        mouseY = y;
+        mouseDeltaX = x - mousePreviousX;
+        mouseDeltaY = y - mousePreviousY;
+        mousePreviousX = x;
+        mousePreviousY = y;
+    }
+
     // KEYBOARD
     @Override
     public void keyPressed(KeyEvent e) {
-        toggleKey(e.getKeyCode(), true);
+        final int key = e.getKeyCode();
+        queue(() -> toggleKey(key, true));
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
-        toggleKey(e.getKeyCode(), false);
+        final int key = e.getKeyCode();
+        queue(() -> toggleKey(key, false));
     }
 
     @Override
@@ -253,38 +298,35 @@ public class Input implements KeyListener, MouseListener, MouseMotionListener, M
 
     @Override
     public void mousePressed(MouseEvent e) {
-        toggleButton(e.getButton(), true);
+        final int button = e.getButton();
+        queue(() -> toggleButton(button, true));
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        toggleButton(e.getButton(), false);
+        final int button = e.getButton();
+        queue(() -> toggleButton(button, false));
     }
 
     // MOUSE MOTION
     @Override
     public void mouseDragged(MouseEvent e) {
-        mouseX = e.getX();
-        mouseY = e.getY();
-        mouseDeltaX = e.getX() - mousePreviousX;
-        mouseDeltaY = e.getY() - mousePreviousY;
-        mousePreviousX = e.getX();
-        mousePreviousY = e.getY();
+        final int x = e.getX();
+        final int y = e.getY();
+        queue(() -> moveMouse(x, y));
     }
 
     @Override
     public void mouseMoved(MouseEvent e) {
-        mouseX = e.getX();
-        mouseY = e.getY();
-        mouseDeltaX = e.getX() - mousePreviousX;
-        mouseDeltaY = e.getY() - mousePreviousY;
-        mousePreviousX = e.getX();
-        mousePreviousY = e.getY();
+        final int x = e.getX();
+        final int y = e.getY();
+        queue(() -> moveMouse(x, y));
     }
 
     // MOUSE WHEEL SCROLL
     @Override
     public void mouseWheelMoved(MouseWheelEvent e) {
-        mouseScroll = e.getWheelRotation();
+        final int rotation = e.getWheelRotation();
+        queue(() -> mouseScroll = rotation);
     }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package toolbox;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Scales pixels up by integer factors into an image the size of the window, which can then be drawn without any scaling:
+ * every source pixel becomes a scaleX wide run, and every scaled row is copied scaleY - 1 times below itself
+ * Pixels are copied as they are, so the scaled image has the BufferedImage type of the source pixels (alpha included)
+**/
+final class IntegerScaler {
+
+    // areas with at least this many scaled pixels are scaled on all cores
+    private static final int PARALLEL_PIXELS = 1 << 16;
+
+    private final int sourceWidth, sourceHeight;
+    private final int scaleX, scaleY;
+
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int width;
+
+    /** Creates a scaler of sourceWidth x sourceHeight pixels stored as in a BufferedImage of the given type (TYPE_INT_*) **/
+    IntegerScaler(int sourceWidth, int sourceHeight, int scaleX, int scaleY, int imageType) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+
+        width = sourceWidth * scaleX;
+        image = new BufferedImage(width, sourceHeight * scaleY, imageType);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Returns the scaled image **/
+    BufferedImage getImage() {
+        return image;
+    }
+
+    /** Scales the given source pixels columns and rows (both included) into the scaled image **/
+    void scale(int[] source, int x0, int y0, int x1, int y1) {
+        if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) * scaleX * scaleY >= PARALLEL_PIXELS) {
+            IntStream.rangeClosed(y0, y1).parallel().forEach(row -> scaleRow(source, row, x0, x1));
+        } else {
+            for (int row = y0; row <= y1; row++) {
+                scaleRow(source, row, x0, x1);
+            }
+        }
+    }
+
+    /** Scales the whole source **/
+    void scale(int[] source) {
+        scale(source, 0, 0, sourceWidth - 1, sourceHeight - 1);
+    }
+
+    private void scaleRow(int[] source, int row, int x0, int x1) {
+        final int start = row * scaleY * width + x0 * scaleX;
+
+        int index = start;
+        int sourceIndex = row * sourceWidth + x0;
+        if (scaleX == 1) {
+            System.arraycopy(source, sourceIndex, pixels, index, x1 - x0 + 1);
+        } else if (scaleX == 2) {
+            for (int x = x0; x <= x1; x++) {
+                final int color = source[sourceIndex++];
+                pixels[index] = color;
+                pixels[index + 1] = color;
+                index += 2;
+            }
+        } else {
+            for (int x = x0; x <= x1; x++) {
+                final int color = source[sourceIndex++];
+                Arrays.fill(pixels, index, index + scaleX, color);
+                index += scaleX;
+            }
+        }
+
+        // the other scaled rows are copies of the first one
+        final int length = (x1 - x0 + 1) * scaleX;
+        for (int copy = 1; copy < scaleY; copy++) {
+            System.arraycopy(pixels, start, pixels, start + copy * width, length);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package toolbox;
+
+import toolbox.gfx.Screen;
+import toolbox.utils.LatencyHistogram;
+
+/**
+ * Times every phase of the sketch loop into a latency histogram, to see which phase is slow and how bad its worst frames are
+ * Every phase is recorded once per tick or per frame (phases that do not run, like SHOW without a window, stay empty)
+ *
+ * The overlay drawn by Sketch.showProfiler(true) has one bar per phase, from the top: update (blue), clear (gray),
+ * render (green), raster (cyan), capture (magenta), blit (orange), show (yellow) and frame (red)
+ * Every bar is as long as the phase p50, its faded part reaches the p99, the white mark is the max,
+ * and the gray line in the middle is one frame at the sketch frame rate
+**/
+public class Profiler {
+
+    public static final int UPDATE = 0; // a whole tick: input and update()
+    public static final int CLEAR = 1; // the automatic clear before render()
+    public static final int RENDER = 2; // render() (only recording its draw calls in threaded mode)
+    public static final int RASTER = 3; // drawing the draw calls recorded for parallel rendering or by the update thread
+    public static final int CAPTURE = 4; // copying the frame for the frame recorder
+    public static final int BLIT = 5; // drawing the frame in the window, scaled
+    public static final int SHOW = 6; // showing the drawn window buffer
+    public static final int FRAME = 7; // the time between two frames
+    public static final int PHASES = 8;
+
+    private static final String[] NAMES = { "update", "clear", "render", "raster", "capture", "blit", "show", "frame" };
+    private static final int[] COLORS = { 0xff3f7fff, 0xff9f9f9f, 0xff3fdf3f, 0xff3fdfdf, 0xffdf3fdf, 0xffff9f1f, 0xffffef3f, 0xffff3f3f };
+
+    // overlay layout, in pixels
+    private static final int BAR_HEIGHT = 3;
+    private static final int BAR_SPACING = 1;
+    private static final int MARGIN = 2;
+    private static final int MAX_BUDGET_WIDTH = 60;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES];
+
+    Profiler() {
+        for (int i = 0; i < PHASES; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Returns the histogram of the given phase **/
+    public LatencyHistogram getHistogram(int phase) {
+        return histograms[phase];
+    }
+
+    /** Returns the duration, in nanoseconds, the given percentage (ranged [0, 100]) of the given phase runs do not exceed **/
+    public long getPercentile(int phase, double percentile) {
+        return histograms[phase].getPercentile(percentile);
+    }
+
+    /** Returns the longest run of the given phase, in nanoseconds **/
+    public long getMax(int phase) {
+        return histograms[phase].getMax();
+    }
+
+    /** Returns the name of the given phase **/
+    public static String getName(int phase) {
+        return NAMES[phase];
+    }
+
+    /** Forgets every recorded timing **/
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /** Returns a table with the count, p50, p99 and max (in milliseconds) of every phase that ran **/
+    public String report() {
+        final StringBuilder report = new StringBuilder(String.format("%-8s %8s %8s %8s %8s\n", "phase", "count", "p50", "p99", "max"));
+        for (int i = 0; i < PHASES; i++) {
+            final LatencyHistogram histogram = histograms[i];
+            if (histogram.getCount() == 0) continue;
+
+            report.append(String.format(
+                "%-8s %8d %8.3f %8.3f %8.3f\n",
+                NAMES[i],
+                histogram.getCount(),
+                histogram.getPercentile(50) / 1e6,
+                histogram.getPercentile(99) / 1e6,
+                histogram.getMax() / 1e6
+            ));
+        }
+        return report.toString();
+    }
+
+    void record(int phase, long nanos) {
+        histograms[phase].record(nanos);
+    }
+
+    /** Draws the overlay in the top left corner of the given screen, frameBudget being the nanoseconds a frame should last **/
+    void drawOverlay(Screen screen, long frameBudget) {
+        final int budgetWidth = Math.min(MAX_BUDGET_WIDTH, (screen.getWidth() - 2 * MARGIN) / 2);
+        if (budgetWidth <= 0) return;
+
+        screen.push();
+        screen.resetTranslation();
+        screen.resetPadding();
+        screen.disableOutlines();
+
+        // y-up: the first bar is at the top of the screen
+        final int x0 = MARGIN;
+        final int top = screen.getHeight() - MARGIN;
+        final int bottom = top - PHASES * (BAR_HEIGHT + BAR_SPACING);
+
+        screen.blend(Screen.BLEND_SOURCE_OVER);
+        screen.fill(0xa0000000);
+        screen.rectangle(x0 - 1, bottom, x0 + 2 * budgetWidth + 2, top + 1);
+
+        for (int i = 0; i < PHASES; i++) {
+            final LatencyHistogram histogram = histograms[i];
+            if (histogram.getCount() == 0) continue;
+
+            final int y1 = top - i * (BAR_HEIGHT + BAR_SPACING);
+            final int y0 = y1 - BAR_HEIGHT;
+
+            screen.fill((COLORS[i] & 0x00ffffff) | 0x60000000);
+            screen.rectangle(x0, y0, x0 + barLength(histogram.getPercentile(99), frameBudget, budgetWidth), y1);
+            screen.fill(COLORS[i]);
+            screen.rectangle(x0, y0, x0 + barLength(histogram.getPercentile(50), frameBudget, budgetWidth), y1);
+            screen.fill(0xffffffff);
+            final int maxX = x0 + barLength(histogram.getMax(), frameBudget, budgetWidth);
+            screen.rectangle(maxX - 1, y0, maxX, y1);
+        }
+
+        screen.fill(0xc0bfbfbf);
+        screen.rectangle(x0 + budgetWidth, bottom + 1, x0 + budgetWidth + 1, top);
+
+        screen.pop();
+    }
+
+    /** Returns the length in pixels of a bar of the given duration (twice the frame budget at most) **/
+    private static int barLength(long nanos, long frameBudget, int budgetWidth) {
+        return (int) ((Math.min(nanos, 2 * frameBudget) * budgetWidth + frameBudget / 2) / frameBudget);
+    }
+}
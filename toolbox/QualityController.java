@@ -0,0 +1,91 @@
+package toolbox;
+
+/**
+ * Picks the sketch quality level (0 is the full quality, MAX_LEVEL the lowest one) from how the thread drawing the frames keeps up:
+ * the level goes down one step as soon as a WINDOW misses frames, and back up after RESTORE_WINDOWS windows in a row
+ * during which the thread is idle enough to afford the better quality
+**/
+final class QualityController {
+
+    static final int MAX_LEVEL = 3;
+
+    // frames are counted and the level updated every WINDOW nanoseconds
+    private static final long WINDOW = 500_000_000L;
+    // a window missing more than this fraction of the frames it should have drawn lowers the quality
+    private static final double MISSED_FRAMES = 0.05;
+    // the busy fraction of a window the better quality is allowed to reach
+    private static final double RESTORE_LOAD = 0.8;
+    private static final int RESTORE_WINDOWS = 4;
+
+    private volatile int level = 0;
+
+    // current window
+    private long windowStart = 0;
+    private long idle = 0;
+    private int frames = 0;
+    private int calmWindows = 0;
+
+    /** Returns the quality level, 0 being the full quality **/
+    int getLevel() {
+        return level;
+    }
+
+    /** Counts time the thread drawing the frames spent waiting **/
+    void idle(long nanos) {
+        idle += nanos;
+    }
+
+    /**
+     * Counts a drawn frame and updates the level at the end of every window (called by the thread drawing the frames)
+     * resolutionScaled tells if every level divides the screen resolution by level + 1, making the cost of restoring a level known
+    **/
+    void frame(long now, int frameRate, boolean resolutionScaled) {
+        frames++;
+        if (windowStart == 0) {
+            startWindow(now);
+            return;
+        }
+
+        final long elapsed = now - windowStart;
+        if (elapsed < WINDOW) return;
+
+        final double expectedFrames = elapsed * (double) frameRate / 1e9;
+        final double load = 1 - (double) idle / elapsed;
+
+        if (frames < expectedFrames * (1 - MISSED_FRAMES)) {
+            level = Math.min(MAX_LEVEL, level + 1);
+            calmWindows = 0;
+        } else if (level > 0 && load * restoreCost(resolutionScaled) < RESTORE_LOAD) {
+            if (++calmWindows >= RESTORE_WINDOWS) {
+                level--;
+                calmWindows = 0;
+            }
+        } else {
+            calmWindows = 0;
+        }
+
+        startWindow(now);
+    }
+
+    /** Returns how many times more the frames are expected to cost at the next better level **/
+    private double restoreCost(boolean resolutionScaled) {
+        // without a resolution change, a better quality is only assumed to cost about twice as much
+        if (!resolutionScaled) return 2;
+
+        // the pixel count grows with the square of the resolution divisor ratio
+        final double ratio = (level + 1.0) / level;
+        return ratio * ratio;
+    }
+
+    /** Starts counting from the next frame again, forgetting the current window (frames were not drawn on purpose) **/
+    void reset() {
+        windowStart = 0;
+        calmWindows = 0;
+    }
+
+    private void startWindow(long now) {
+        windowStart = now;
+        idle = 0;
+        frames = 0;
+    }
+}
@@ -3,28 +3,65 @@ package toolbox;
 import javax.swing.JFrame;
 
 import java.awt.BorderLayout;
+import java.awt.BufferCapabilities;
 import java.awt.Canvas;
 import java.awt.Graphics;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ObjIntConsumer;
 
+import toolbox.gfx.DirtyRects;
+import toolbox.gfx.DisplayList;
 import toolbox.gfx.Screen;
+import toolbox.utils.Clock;
 import toolbox.utils.Console;
 
 public abstract class Sketch {
 
+	// power policies (what the sketch does while its window is hidden or in the background), from the weakest to the strongest
+	public static final int POWER_FULL = 0; // ticks and frames at full rate
+	public static final int POWER_THROTTLE = 1; // frames at the idle frame rate, ticks at full rate
+	public static final int POWER_SUSPEND_FRAMES = 2; // no frames, ticks at full rate
+	public static final int POWER_SUSPEND = 3; // no frames and no ticks (ticks resume where they stopped, nothing is caught up)
+
+	// window states, as flags
+	public static final int WINDOW_ICONIFIED = 1;
+	public static final int WINDOW_UNFOCUSED = 2;
+	public static final int WINDOW_OCCLUDED = 4; // hidden, or entirely off every screen
+
+	private static final int BUFFERS = 3;
+	// the most ticks run in a row to catch up with a late loop, the ones left behind are dropped
+	private static final int MAX_CATCH_UP_TICKS = 5;
+	// how long the sketch runs at full rate after an input event or a wake() call, whatever the state of its window
+	private static final long WAKE_DURATION = 2_000_000_000L;
+	// the longest a suspended loop sleeps before checking the window state again
+	private static final long SUSPENDED_POLL = 250_000_000L;
+
     private int windowWidth, windowHeight;
     private int pixelScale;
+	// how the screens store their pixels (one of the Screen.FORMAT_* constants)
+	private int pixelFormat = Screen.FORMAT_ARGB;
 
-    private boolean running;
+    private volatile boolean running;
 
     private int tickRate = 60;
     private int frameRate = 60;
-    private int tps, fps;
+    private volatile int tps, fps;
+	private long droppedTicks, caughtUpTicks;
 	private int time = 0;
+	private long nextTick;
 
 	protected JFrame jFrame;
 
@@ -32,13 +69,78 @@ public abstract class Sketch {
 	private BufferedImage image;
 	private BufferStrategy bs;
 	private Graphics g;
-	private int[] pixels;
+
+	// the window has to be shown again as a whole (first frame, window exposed or buffer contents lost)
+	private volatile boolean presentAll = true;
+	// the changed pixels of the last shown frames (a back buffer can be up to BUFFERS - 1 frames behind)
+	private final DirtyRects[] presentedFrames = new DirtyRects[BUFFERS - 1];
+	private int presentedFrameIndex = 0;
+	// the area shown this frame
+	private final DirtyRects presented = new DirtyRects();
 	
 	protected Input input;
 	protected Screen screen;
 
 	private boolean autoClear = true;
 
+	// update and render on two threads
+	private boolean threaded = false;
+	// the screen frames are drawn on and shown from (the sketch screen itself unless threaded)
+	private Screen frameScreen;
+	// frames recorded by render() on the update thread and drawn on the render thread, triple buffered so that
+	// neither thread waits for the other: the lock is only held to swap two of them
+	private Frame recordedFrame = new Frame();
+	private Frame readyFrame = new Frame();
+	private Frame drawnFrame = new Frame();
+	private boolean frameReady = false;
+	private final Object frameLock = new Object();
+
+	// adaptive quality
+	private volatile boolean adaptiveQuality = false;
+	private volatile boolean adaptiveResolution = false;
+	private final QualityController qualityController = new QualityController();
+	// quality level of the sketch (update thread)
+	private int quality = 0;
+	// the sketch screen, frame screen and image of every resolution level, the screen size being divided by level + 1
+	// (created when first needed, level 0 is the full resolution)
+	private final Screen[] screens = new Screen[QualityController.MAX_LEVEL + 1];
+	private final Screen[] frameScreens = new Screen[QualityController.MAX_LEVEL + 1];
+	private final BufferedImage[] images = new BufferedImage[QualityController.MAX_LEVEL + 1];
+	// scale every image up to the window size when it is an exact multiple of it (null otherwise, or when the image is as big as the window)
+	private final IntegerScaler[] scalers = new IntegerScaler[QualityController.MAX_LEVEL + 1];
+	// resolution level of the sketch screen (update thread) and of the frame screen (thread drawing the frames)
+	private int screenLevel = 0;
+	private int frameLevel = 0;
+
+	// records the drawn frames (null if not recording)
+	private volatile FrameRecorder recorder;
+
+	// times every phase of the loop
+	private final Profiler profiler = new Profiler();
+	private volatile boolean showProfiler = false;
+	// when the last frame started (0 before the first one), only used by the thread drawing the frames
+	private long lastFrameStart = 0;
+
+	// power saving: the policy of every window state flag (indexed by flag bit) and the frame rate of POWER_THROTTLE
+	private final int[] powerPolicies = { POWER_SUSPEND_FRAMES, POWER_FULL, POWER_SUSPEND_FRAMES };
+	private volatile int idleFrameRate = 10;
+	// WINDOW_* flags of the window (written on the AWT event thread)
+	private volatile int windowState = 0;
+	// the window state the policy was chosen for and the chosen policy (update thread)
+	private volatile int powerState = 0;
+	private volatile int chosenPowerPolicy = POWER_FULL;
+	// the policy in effect, POWER_FULL while the sketch is awake (written by the update thread)
+	private volatile int powerPolicy = POWER_FULL;
+	private volatile long awakeUntil = System.nanoTime();
+	// true while the quality controller is not fed because frames are throttled (thread drawing the frames)
+	private boolean qualityPaused = false;
+	// the clocks the update loop and the render thread wait on, woken up when the power policy has to be checked again
+	private final Clock loopClock = new Clock();
+	private final Clock frameClock = new Clock();
+
+	// the assets passed to preload() (update thread, null once they are all loaded)
+	private CompletableFuture<?>[] preloads;
+
     // SKETCH FUNCTIONS
 	/** Called once before the sketch window is opened */
     public void windowSetup() {
@@ -50,8 +152,65 @@ public abstract class Sketch {
     public abstract void update();
 	/** Called FRAME_RATE times per second after update() is called (you can draw only here because screen.clear() will be called right before this if screen automatic clear is enabled) */
     public abstract void render();
+	/**
+	 * Called with adaptive quality enabled when the quality level changes (0 is the full quality, up to 3), right before render()
+	 * Skip expensive drawings at lower levels, and set up again anything that depends on the screen size if adaptive resolution is enabled
+	**/
+	public void qualityChanged(int quality) {
+
+	}
+	/**
+	 * Called when the window state changes with its WINDOW_* flags (0 when it is shown and focused), right before the next tick
+	 * Returns the power policy to follow in that state: by default the strongest one set with setPowerPolicy() for the given flags
+	 * Override it to opt out of power saving (return POWER_FULL) or to pick the policy from the sketch own state
+	**/
+	public int choosePowerPolicy(int windowState) {
+		int policy = POWER_FULL;
+		for (int i = 0; i < powerPolicies.length; i++) {
+			if ((windowState & (1 << i)) != 0) {
+				policy = Math.max(policy, powerPolicies[i]);
+			}
+		}
+		return policy;
+	}
+	/** Called when the power policy in effect changes (e.g. to pause sounds while suspended), right before the next tick **/
+	public void powerPolicyChanged(int policy) {
+
+	}
+	/**
+	 * Called instead of render() while the assets passed to preload() are loading, with the loaded fraction of them ranged [0, 1]
+	 * Draws a progress bar across the middle of the screen by default
+	**/
+	public void renderLoading(float progress) {
+		final int width = screen.getWidth() / 2;
+		final int x = (screen.getWidth() - width) / 2;
+		final int y = screen.getHeight() / 2;
+
+		screen.push();
+		screen.resetTranslation();
+		screen.resetPadding();
+		screen.blend(Screen.BLEND_REPLACE);
+		screen.disableOutlines();
+		screen.fill(0xff404040);
+		screen.rectangle(x, y - 4, x + width, y + 4);
+		screen.fill(0xffffffff);
+		screen.rectangle(x, y - 4, x + Math.round(width * progress), y + 4);
+		screen.pop();
+	}
 
     public void createCanvas(String title, int width, int height, int pixelScale) {
+		createCanvas(title, width, height, pixelScale, Screen.FORMAT_ARGB);
+	}
+
+	/**
+	 * Same as createCanvas(title, width, height, pixelScale) with the screen pixels stored in the given format (one of the Screen.FORMAT_* constants)
+	 * Fully opaque sketches should use Screen.FORMAT_RGB: drawing skips the alpha math and the frames are shown faster
+	**/
+	public void createCanvas(String title, int width, int height, int pixelScale, int pixelFormat) {
+		if (pixelFormat < Screen.FORMAT_ARGB || pixelFormat > Screen.FORMAT_ARGB_PRE) {
+			throw new IllegalArgumentException("Unknown pixel format: " + pixelFormat);
+		}
+		this.pixelFormat = pixelFormat;
         this.windowWidth = width * pixelScale;
         this.windowHeight = height * pixelScale;
         this.pixelScale = pixelScale;
@@ -59,7 +218,13 @@ public abstract class Sketch {
         // start sketch app
         // BufferedImage icon = FileManager.createBufferedImage(ICON_PATH);
 
-		canvas = new Canvas();
+		canvas = new Canvas() {
+			@Override
+			public void paint(Graphics g) {
+				// the window was exposed, the next frame has to show everything again
+				presentAll = true;
+			}
+		};
 		canvas.setSize(windowWidth, windowHeight);
 		
 		jFrame = new JFrame(title);
@@ -71,6 +236,36 @@ public abstract class Sketch {
 		jFrame.setResizable(false);
 		// jFrame.setIconImage(icon);
 
+		// power saving: track whether the window is iconified, unfocused or occluded
+		jFrame.addWindowStateListener(e -> updateWindowState());
+		jFrame.addWindowFocusListener(new WindowAdapter() {
+			@Override
+			public void windowGainedFocus(WindowEvent e) {
+				updateWindowState();
+			}
+
+			@Override
+			public void windowLostFocus(WindowEvent e) {
+				updateWindowState();
+			}
+		});
+		jFrame.addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentMoved(ComponentEvent e) {
+				updateWindowState();
+			}
+
+			@Override
+			public void componentShown(ComponentEvent e) {
+				updateWindowState();
+			}
+
+			@Override
+			public void componentHidden(ComponentEvent e) {
+				updateWindowState();
+			}
+		});
+
 		windowSetup();
 		
 		jFrame.pack();
@@ -78,12 +273,17 @@ public abstract class Sketch {
 		jFrame.setVisible(true);
 
 		// rendering "pipeline" initialization
-		screen = new Screen(width, height);
-		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		createScreens(0);
+		screen = screens[0];
+		frameScreen = frameScreens[0];
+		image = images[0];
+		for (int i = 0; i < presentedFrames.length; i++) {
+			presentedFrames[i] = new DirtyRects();
+		}
 
 		// input handler initialization
 		input = new Input(windowHeight, pixelScale, screen);
+		input.setEventListener(this::inputReceived);
 		canvas.addKeyListener(input);
 		canvas.addMouseListener(input);
 		canvas.addMouseMotionListener(input);
@@ -94,11 +294,78 @@ public abstract class Sketch {
 		run();
     }
 
+	/**
+	 * Runs the sketch without opening a window (it works with java.awt.headless=true),
+	 * calling setup() and then, for every one of the given number of frames, the ticks that are due, render() and the given consumer
+	 * with the drawn screen and the frame index (the screen pixels are only valid until the consumer returns)
+	 * The ticks follow a simulated clock advancing by 1 / frameRate seconds every frame, so the same sketch always runs the same ticks
+	 * When realTime is false nothing waits and the sketch runs as fast as possible, otherwise frames are paced like in a window
+	 * windowSetup() is not called, and close() stops the run after the current frame
+	**/
+	public void runHeadless(int width, int height, int frames, boolean realTime, ObjIntConsumer<Screen> consumer) {
+		windowWidth = width;
+		windowHeight = height;
+		pixelScale = 1;
+
+		screen = new Screen(width, height, pixelFormat);
+		frameScreen = screen;
+		screens[0] = screen;
+		frameScreens[0] = screen;
+		input = new Input(windowHeight, pixelScale, screen);
+
+		running = true;
+		try {
+			setup();
+
+			final Clock clock = new Clock();
+			final long start = System.nanoTime();
+
+			// simulated time of the current frame, in nanoseconds
+			long frameTime = 0;
+			nextTick = 0;
+
+			for (int frame = 0; frame < frames && running; frame++) {
+				if (realTime) {
+					clock.waitUntil(start + frameTime);
+				}
+
+				// no tick is ever dropped, the simulated clock never runs late
+				while (frameTime - nextTick >= 0) {
+					tick();
+					nextTick += 1_000_000_000L / tickRate;
+				}
+
+				drawFrameScreen();
+
+				consumer.accept(screen, frame);
+				screen.clearDirtyRects();
+
+				frameTime += 1_000_000_000L / frameRate;
+			}
+		} finally {
+			running = false;
+			stopRecording();
+		}
+	}
+
+	/** Runs the sketch without opening a window as fast as possible (see runHeadless() above) and returns a copy of the pixels of every frame **/
+	public int[][] runHeadless(int width, int height, int frames) {
+		final int[][] pixels = new int[frames][];
+		final int[] count = new int[1];
+		runHeadless(width, height, frames, false, (frameScreen, frame) -> {
+			pixels[frame] = frameScreen.getPixels().clone();
+			count[0] = frame + 1;
+		});
+		return Arrays.copyOf(pixels, count[0]);
+	}
+
 	/**
 	 * Gently requests the sketch app to close
 	**/
 	public void close() {
 		running = false;
+		loopClock.wake();
+		frameClock.wake();
 	}
 
 	// @Override
@@ -108,86 +375,614 @@ public abstract class Sketch {
 		try {
 			setup();
 
-            long now = System.currentTimeMillis();
-            long lastUpdate = 0;
-            long lastRender = 0;
-            long lastRunInfoRefresh = now;
-            
-            double updateInterval = 1000.0 / tickRate;
-            double renderInterval = 1000.0 / frameRate;
-            double runInfoRefreshInterval = 1000.0;
-
-            int ticks = 0;
-            int frames = 0;
-
-            while (running) {
-                now = System.currentTimeMillis();
-
-                if (now - lastUpdate >= updateInterval) {
-                    tick();
-                    ticks++;
-                    lastUpdate = now;
-                }
-
-                if (now - lastRender >= renderInterval) {
-                    draw();
-                    frames++;
-                    lastRender = now;
-                }
-
-                if (now - lastRunInfoRefresh >= runInfoRefreshInterval) {
-                    tps = ticks;
-                    fps = frames;
-                    ticks = 0;
-                    frames = 0;
-                    lastRunInfoRefresh = now;
-                }
-            }
+			if (threaded) {
+				runThreaded();
+			} else {
+				runSingleThreaded();
+			}
+			stopRecording();
 			// if running == false then close the window, thus closing the whole sketch app as the jFrame exit mode is EXIT_ON_CLOSE
 			jFrame.dispatchEvent(new WindowEvent(jFrame, WindowEvent.WINDOW_CLOSING));
-        } catch (Exception e) {
-			running = false;
-            Console.error("Your sketch crashed and produced the following report:\n%s", e.getStackTrace());
-            System.exit(1);
-        }
-    }
+		} catch (Exception e) {
+			crash(e);
+		}
+	}
+
+	private void runSingleThreaded() {
+		long now = System.nanoTime();
+		long nextFrame = now;
+		long lastRunInfoRefresh = now;
+		nextTick = now;
+
+		int ticks = 0;
+		int frames = 0;
+
+		while (running) {
+			final int policy = updatePowerPolicy(now);
+			final long frameInterval = frameInterval(policy);
+
+			if (policy == POWER_SUSPEND) {
+				nextTick = now;
+			} else {
+				ticks += runDueTicks(now);
+			}
+
+			// frames are never caught up, a late frame is drawn once and the next one is scheduled from now
+			if (policy >= POWER_SUSPEND_FRAMES) {
+				nextFrame = now;
+			} else if (now - nextFrame >= 0) {
+				draw();
+				frames++;
+				countFrame(policy);
+				nextFrame += frameInterval;
+				if (now - nextFrame >= 0) {
+					nextFrame = now + frameInterval;
+				}
+			}
+
+			if (now - lastRunInfoRefresh >= 1_000_000_000L) {
+				tps = ticks;
+				fps = frames;
+				ticks = 0;
+				frames = 0;
+				lastRunInfoRefresh = now;
+			}
+
+			// sleep until the next tick or frame is due
+			final long deadline;
+			if (policy == POWER_SUSPEND) {
+				deadline = now + SUSPENDED_POLL;
+			} else if (policy == POWER_SUSPEND_FRAMES) {
+				deadline = nextTick;
+			} else {
+				deadline = nextTick - nextFrame < 0 ? nextTick : nextFrame;
+			}
+			final long waitStart = System.nanoTime();
+			loopClock.waitUntil(deadline);
+			now = System.nanoTime();
+			if (policy == POWER_FULL) {
+				qualityController.idle(now - waitStart);
+			}
+		}
+	}
+
+	/** Runs ticks on this thread and draws frames on a render thread, until the sketch is closed **/
+	private void runThreaded() throws InterruptedException {
+		final Thread renderThread = new Thread(this::runFrames, "Sketch render thread");
+		renderThread.start();
+
+		long now = System.nanoTime();
+		long nextRecord = now;
+		long lastRunInfoRefresh = now;
+		nextTick = now;
+
+		int ticks = 0;
+
+		while (running) {
+			final int policy = updatePowerPolicy(now);
+			final long frameInterval = frameInterval(policy);
+
+			int dueTicks = 0;
+			if (policy == POWER_SUSPEND) {
+				nextTick = now;
+			} else {
+				dueTicks = runDueTicks(now);
+				ticks += dueTicks;
+			}
+
+			// record a frame after the ticks that ran, at most as many times per second as frames are drawn
+			if (policy < POWER_SUSPEND_FRAMES && dueTicks > 0 && now - nextRecord >= 0) {
+				recordFrame();
+				nextRecord += frameInterval;
+				if (now - nextRecord >= 0) {
+					nextRecord = now + frameInterval;
+				}
+			}
+
+			if (now - lastRunInfoRefresh >= 1_000_000_000L) {
+				tps = ticks;
+				ticks = 0;
+				lastRunInfoRefresh = now;
+			}
+
+			loopClock.waitUntil(policy == POWER_SUSPEND ? now + SUSPENDED_POLL : nextTick);
+			now = System.nanoTime();
+		}
+
+		renderThread.join();
+	}
+
+	/** Draws and shows the frames recorded by the update thread, until the sketch is closed **/
+	private void runFrames() {
+		try {
+			long now = System.nanoTime();
+			long nextFrame = now;
+			long lastRunInfoRefresh = now;
+
+			int frames = 0;
+
+			while (running) {
+				final int policy = powerPolicy;
+				if (policy < POWER_SUSPEND_FRAMES) {
+					drawFrame();
+					frames++;
+					countFrame(policy);
+				}
+
+				if (now - lastRunInfoRefresh >= 1_000_000_000L) {
+					fps = frames;
+					frames = 0;
+					lastRunInfoRefresh = now;
+				}
+
+				// suspended frames wait for the policy to change, the update thread wakes this clock up when it does
+				nextFrame = policy < POWER_SUSPEND_FRAMES ? nextFrame + frameInterval(policy) : now + SUSPENDED_POLL;
+				final long waitStart = System.nanoTime();
+				if (waitStart - nextFrame >= 0) {
+					nextFrame = waitStart;
+				}
+				frameClock.waitUntil(nextFrame);
+				now = System.nanoTime();
+				if (policy == POWER_FULL) {
+					qualityController.idle(now - waitStart);
+				}
+			}
+		} catch (Exception e) {
+			crash(e);
+		}
+	}
+
+	/**
+	 * Picks the power policy to follow at the given time from the window state, calling the power callbacks when needed,
+	 * and returns it (update thread)
+	**/
+	private int updatePowerPolicy(long now) {
+		final int state = windowState;
+		if (state != powerState) {
+			powerState = state;
+			chosenPowerPolicy = choosePowerPolicy(state);
+		}
+
+		// frames are never throttled while recording, so that the recording keeps its frame rate
+		final int policy = now - awakeUntil < 0 || recorder != null ? POWER_FULL : chosenPowerPolicy;
+		final int previous = powerPolicy;
+		if (policy != previous) {
+			powerPolicy = policy;
+			if (previous >= POWER_SUSPEND_FRAMES) {
+				// the window may show anything after frames were suspended
+				presentAll = true;
+			}
+			// the render thread may be waiting for suspended frames to resume
+			frameClock.wake();
+			powerPolicyChanged(policy);
+		}
+		return policy;
+	}
+
+	/** Returns the nanoseconds between two frames under the given power policy **/
+	private long frameInterval(int policy) {
+		return 1_000_000_000L / (policy == POWER_THROTTLE ? Math.min(frameRate, idleFrameRate) : frameRate);
+	}
+
+	/** Lets adaptive quality count a drawn frame, unless the power policy throttles frames (thread drawing the frames) **/
+	private void countFrame(int policy) {
+		if (policy != POWER_FULL) {
+			qualityPaused = true;
+			return;
+		}
+		if (qualityPaused) {
+			// the frames skipped on purpose are not missed frames
+			qualityController.reset();
+			qualityPaused = false;
+		}
+		qualityController.frame(System.nanoTime(), frameRate, adaptiveResolution);
+	}
+
+	/** Keeps the sketch at full rate for a while after an input event, if its window state throttles it (AWT event thread) **/
+	private void inputReceived() {
+		if (chosenPowerPolicy == POWER_FULL) return;
+		wake();
+	}
+
+	/** Reads the window state flags and lets the update loop know if they changed (AWT event thread) **/
+	private void updateWindowState() {
+		int state = 0;
+		if ((jFrame.getExtendedState() & JFrame.ICONIFIED) != 0) state |= WINDOW_ICONIFIED;
+		if (!jFrame.isFocused()) state |= WINDOW_UNFOCUSED;
+		if (isOccluded()) state |= WINDOW_OCCLUDED;
+
+		if (state != windowState) {
+			windowState = state;
+			loopClock.wake();
+		}
+	}
+
+	/** Returns true if the canvas is not shown or entirely off every screen (AWT does not tell when other windows cover it) **/
+	private boolean isOccluded() {
+		if (!canvas.isShowing()) return true;
+
+		final Rectangle bounds = new Rectangle(canvas.getLocationOnScreen(), canvas.getSize());
+		for (GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+			if (device.getDefaultConfiguration().getBounds().intersects(bounds)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs every tick that is due at the given time, catching up at most MAX_CATCH_UP_TICKS of them at once
+	 * and skipping the ones left behind, then returns the number of ticks that ran
+	**/
+	private int runDueTicks(long now) {
+		final long tickInterval = 1_000_000_000L / tickRate;
+
+		int dueTicks = 0;
+		while (now - nextTick >= 0 && dueTicks < MAX_CATCH_UP_TICKS) {
+			tick();
+			dueTicks++;
+			nextTick += tickInterval;
+		}
+		if (dueTicks > 1) {
+			caughtUpTicks += dueTicks - 1;
+		}
+		// still late: the sketch cannot keep up, skip the ticks that are left behind
+		if (now - nextTick >= 0) {
+			final long late = (now - nextTick) / tickInterval + 1;
+			droppedTicks += late;
+			nextTick += late * tickInterval;
+		}
+		return dueTicks;
+	}
+
+	private void crash(Exception e) {
+		running = false;
+		Console.error("Your sketch crashed and produced the following report:\n%s", e.getStackTrace());
+		System.exit(1);
+	}
 
 	private void tick() {
+		final long start = System.nanoTime();
 		time += 1;
 
+		input.processEvents();
+
 		if (input.isKeyPressed(KeyEvent.VK_ESCAPE)) {
 			running = false;
 		}
 
-		update();
+		if (!isLoading()) {
+			update();
+		}
 
 		// this is called after the sketch update because otherwise the pressed and released
 		// variables are updated before they can be detected by the sketch update method user implementation
 		input.update();
+
+		profiler.record(Profiler.UPDATE, System.nanoTime() - start);
 	}
 
 	private void draw() {
-		bs = canvas.getBufferStrategy();
-		if (bs == null) {
-			canvas.createBufferStrategy(3);
-			canvas.requestFocus();
+		if (!prepareBufferStrategy()) return;
+
+		applyQuality();
+		drawFrameScreen();
+		present();
+	}
+
+	/**
+	 * Creates the screens and the image of the given resolution level, if needed
+	 * The frame screen draws straight into the image pixels: the image is only read by drawImage() in present(),
+	 * on the same thread and after the frame has been drawn, so it is never shown half drawn
+	**/
+	private void createScreens(int level) {
+		if (images[level] != null) return;
+
+		final int width = Math.max(1, windowWidth / pixelScale / (level + 1));
+		final int height = Math.max(1, windowHeight / pixelScale / (level + 1));
+		final BufferedImage levelImage = new BufferedImage(width, height, imageType(pixelFormat));
+		final int[] imagePixels = ((DataBufferInt) levelImage.getRaster().getDataBuffer()).getData();
+		if (threaded) {
+			// the sketch screen only records the draw calls of render(), they are drawn on the render thread
+			screens[level] = new Screen(width, height, pixelFormat);
+			frameScreens[level] = new Screen(width, height, imagePixels, pixelFormat);
+		} else {
+			screens[level] = new Screen(width, height, imagePixels, pixelFormat);
+			frameScreens[level] = screens[level];
+		}
+		images[level] = levelImage;
+
+		if (windowWidth % width == 0 && windowHeight % height == 0 && (windowWidth > width || windowHeight > height)) {
+			scalers[level] = new IntegerScaler(width, height, windowWidth / width, windowHeight / height, levelImage.getType());
+		}
+	}
+
+	/** Returns the BufferedImage type storing pixels of the given format **/
+	private static int imageType(int pixelFormat) {
+		switch (pixelFormat) {
+			case Screen.FORMAT_RGB:
+				return BufferedImage.TYPE_INT_RGB;
+			case Screen.FORMAT_ARGB_PRE:
+				return BufferedImage.TYPE_INT_ARGB_PRE;
+			default:
+				return BufferedImage.TYPE_INT_ARGB;
+		}
+	}
+
+	/**
+	 * Applies the quality level picked by adaptive quality, if it changed, switching to the screen of its resolution
+	 * if adaptive resolution is enabled, and lets the sketch know (update thread, right before a frame is drawn or recorded)
+	**/
+	private void applyQuality() {
+		final int level = adaptiveQuality ? qualityController.getLevel() : 0;
+		final int resolutionLevel = adaptiveResolution ? level : 0;
+
+		if (resolutionLevel != screenLevel) {
+			createScreens(resolutionLevel);
+			final Screen previous = screen;
+			screen = screens[resolutionLevel];
+			screen.setState(previous);
+			screenLevel = resolutionLevel;
+			input.setScreen(screen);
+			if (!threaded) {
+				setFrameLevel(resolutionLevel);
+			}
+		}
+
+		if (level != quality) {
+			quality = level;
+			qualityChanged(level);
+		}
+	}
+
+	/** Draws and shows the frames of the given resolution level from now on (thread drawing the frames) **/
+	private void setFrameLevel(int level) {
+		if (level == frameLevel) return;
+
+		frameLevel = level;
+		frameScreen = frameScreens[level];
+		image = images[level];
+
+		// what the window and the back buffers show has another size
+		presentAll = true;
+		for (DirtyRects frame : presentedFrames) {
+			frame.clear();
+		}
+	}
+
+	/** Draws the frame on the sketch screen (single threaded and headless modes) **/
+	private void drawFrameScreen() {
+		long start = startFrame();
+
+		if (autoClear) {
+			screen.clear();
+			start = lap(Profiler.CLEAR, start);
+		}
+
+		renderFrame();
+		start = lap(Profiler.RENDER, start);
+		// draw everything recorded while rendering if parallel rendering is enabled
+		screen.flush();
+		lap(Profiler.RASTER, start);
+
+		finishFrame();
+	}
+
+	/** Calls render(), or renderLoading() until update() ran with every preloaded asset loaded (update thread) **/
+	private void renderFrame() {
+		if (preloads == null) {
+			render();
 			return;
 		}
 
+		int loaded = 0;
+		for (CompletableFuture<?> preload : preloads) {
+			if (preload.isDone()) {
+				loaded++;
+			}
+		}
+		renderLoading((float) loaded / preloads.length);
+	}
+
+	/**
+	 * Returns true while some assets passed to preload() are still loading (update thread)
+	 * Throws the failure of an asset that could not be loaded, which crashes the sketch
+	**/
+	private boolean isLoading() {
+		if (preloads == null) return false;
+
+		for (CompletableFuture<?> preload : preloads) {
+			if (!preload.isDone()) return true;
+		}
+		try {
+			CompletableFuture.allOf(preloads).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException cause) throw cause;
+			throw e;
+		}
+		preloads = null;
+		return false;
+	}
+
+	/** Records the draw calls of render() into a frame and hands it over to the render thread (update thread) **/
+	private void recordFrame() {
+		applyQuality();
+		long start = System.nanoTime();
+
+		recordedFrame.level = screenLevel;
+		recordedFrame.parallel = screen.isParallel();
+		screen.beginRecording(recordedFrame.list);
 		if (autoClear) {
 			screen.clear();
+			start = lap(Profiler.CLEAR, start);
 		}
+		renderFrame();
+		screen.endRecording();
+		lap(Profiler.RENDER, start);
 
-		render();
-		
-		for (int i = 0; i < pixels.length; i++) {
-			pixels[i] = screen.getPixels()[i];
+		synchronized (frameLock) {
+			final Frame frame = readyFrame;
+			readyFrame = recordedFrame;
+			recordedFrame = frame;
+			frameReady = true;
+		}
+	}
+
+	/** Draws the last frame recorded by the update thread, if it was not drawn yet, and shows it (render thread) **/
+	private void drawFrame() {
+		if (!prepareBufferStrategy()) return;
+
+		final boolean newFrame;
+		synchronized (frameLock) {
+			newFrame = frameReady;
+			if (newFrame) {
+				final Frame frame = drawnFrame;
+				drawnFrame = readyFrame;
+				readyFrame = frame;
+				frameReady = false;
+			}
+		}
+
+		// without a new frame the screen did not change, present() only shows it again if the window needs it
+		if (newFrame) {
+			final long start = startFrame();
+			// the sketch screen belongs to the update thread, which swaps it when the resolution changes:
+			// the frame carries everything the render thread needs to know about it
+			setFrameLevel(drawnFrame.level);
+			frameScreen.parallel(drawnFrame.parallel);
+			frameScreen.draw(drawnFrame.list);
+			frameScreen.flush();
+			lap(Profiler.RASTER, start);
+
+			finishFrame();
+		}
+
+		present();
+	}
+
+	/** Records the time since the last frame started and returns the current time **/
+	private long startFrame() {
+		final long now = System.nanoTime();
+		if (lastFrameStart != 0) {
+			profiler.record(Profiler.FRAME, now - lastFrameStart);
+		}
+		lastFrameStart = now;
+		return now;
+	}
+
+	/** Passes the drawn frame to the frame recorder, if recording, then draws the profiler overlay, if shown **/
+	private void finishFrame() {
+		// frames drawn at a lower resolution than the recorded one are not recorded
+		final FrameRecorder frameRecorder = recorder;
+		if (frameRecorder != null && frameRecorder.getWidth() == frameScreen.getWidth() && frameRecorder.getHeight() == frameScreen.getHeight()) {
+			final long start = System.nanoTime();
+			frameRecorder.capture(frameScreen.getPixels(), frameScreen.getFormat());
+			lap(Profiler.CAPTURE, start);
+		}
+
+		if (showProfiler) {
+			profiler.drawOverlay(frameScreen, 1_000_000_000L / frameRate);
+		}
+	}
+
+	/** Records the time since the given start time for the given phase and returns the current time **/
+	private long lap(int phase, long start) {
+		final long now = System.nanoTime();
+		profiler.record(phase, now - start);
+		return now;
+	}
+
+	/** Returns false if the buffer strategy had to be created, in which case the frame is skipped **/
+	private boolean prepareBufferStrategy() {
+		bs = canvas.getBufferStrategy();
+		if (bs == null) {
+			canvas.createBufferStrategy(BUFFERS);
+			canvas.requestFocus();
+			return false;
+		}
+		return true;
+	}
+
+	/** Shows the frame screen in the window, only drawing what changed when possible **/
+	private void present() {
+		final DirtyRects dirty = frameScreen.getDirtyRects();
+		// the back buffer may also miss the changes of the last shown frames
+		presented.set(dirty);
+		for (DirtyRects frame : presentedFrames) {
+			presented.addAll(frame);
+		}
+
+		// nothing changed: the window already shows this frame
+		final boolean all = presentAll;
+		if (!all && presented.isEmpty()) {
+			frameScreen.clearDirtyRects();
+			return;
+		}
+		presentAll = false;
+
+		long start = System.nanoTime();
+
+		// scale the changed pixels up ourselves when the window is an exact multiple of the image,
+		// the scaled image is then drawn without scaling
+		final IntegerScaler scaler = scalers[frameLevel];
+		if (scaler != null) {
+			if (all) {
+				scaler.scale(frameScreen.getPixels());
+			} else {
+				for (int i = 0; i < dirty.size(); i++) {
+					scaler.scale(frameScreen.getPixels(), dirty.getX0(i), dirty.getY0(i), dirty.getX1(i), dirty.getY1(i));
+				}
+			}
 		}
 
 		g = bs.getDrawGraphics();
-		g.drawImage(image, 0, 0, getWindowWidth(), getWindowHeight(), null);
+		if (all || !keepsBackBuffers()) {
+			if (scaler != null) {
+				g.drawImage(scaler.getImage(), 0, 0, null);
+			} else {
+				g.drawImage(image, 0, 0, getWindowWidth(), getWindowHeight(), null);
+			}
+		} else {
+			for (int i = 0; i < presented.size(); i++) {
+				final int x0 = presented.getX0(i);
+				final int y0 = presented.getY0(i);
+				final int x1 = presented.getX1(i) + 1;
+				final int y1 = presented.getY1(i) + 1;
+				if (scaler != null) {
+					final int windowX0 = x0 * windowWidth / image.getWidth();
+					final int windowY0 = y0 * windowHeight / image.getHeight();
+					final int windowX1 = x1 * windowWidth / image.getWidth();
+					final int windowY1 = y1 * windowHeight / image.getHeight();
+					g.drawImage(scaler.getImage(), windowX0, windowY0, windowX1, windowY1, windowX0, windowY0, windowX1, windowY1, null);
+					continue;
+				}
+				g.drawImage(
+					image,
+					x0 * windowWidth / image.getWidth(), y0 * windowHeight / image.getHeight(),
+					x1 * windowWidth / image.getWidth(), y1 * windowHeight / image.getHeight(),
+					x0, y0, x1, y1,
+					null
+				);
+			}
+		}
 		g.dispose();
+		start = lap(Profiler.BLIT, start);
 		bs.show();
+		lap(Profiler.SHOW, start);
+
+		if (bs.contentsLost() || bs.contentsRestored()) {
+			presentAll = true;
+		}
+		presentedFrames[presentedFrameIndex].set(dirty);
+		presentedFrameIndex = (presentedFrameIndex + 1) % presentedFrames.length;
+		frameScreen.clearDirtyRects();
+	}
+
+	/** Returns true if the back buffers keep what was drawn on them, so only the changed areas have to be drawn again **/
+	private boolean keepsBackBuffers() {
+		final BufferCapabilities capabilities = bs.getCapabilities();
+		if (!capabilities.isPageFlipping()) return true;
+
+		final BufferCapabilities.FlipContents contents = capabilities.getFlipContents();
+		return contents == BufferCapabilities.FlipContents.PRIOR || contents == BufferCapabilities.FlipContents.COPIED;
 	}
 
     // SETTERS
@@ -201,6 +996,122 @@ public abstract class Sketch {
 		this.frameRate = frameRate;
 	}
 
+	/**
+	 * Toggles threaded mode, which is false by default (call it before the sketch window is opened, e.g. in windowSetup())
+	 * When enabled, update() and render() run on one thread while the frames are drawn and shown on another one,
+	 * so a slow simulation and a slow drawing no longer slow each other down:
+	 * render() is called right after the ticks on the update thread, but its draw calls are only recorded and then drawn on the render thread
+	 * In threaded mode render() cannot read back the screen pixels nor overlay other screens (screen.overlay() throws an IllegalStateException),
+	 * images it draws must not change in the next frames,
+	 * and frames that could not be drawn in time are skipped (a sketch without automatic clear would lose what they draw)
+	**/
+	public void threaded(boolean toggle) {
+		if (screen != null) {
+			throw new IllegalStateException("Threaded mode must be set before the sketch window is opened");
+		}
+		threaded = toggle;
+	}
+
+	/**
+	 * Starts recording every drawn frame with the given recorder (stopping the current one, if any),
+	 * which has to be as big as the full resolution screen
+	 * Recording is stopped, and every frame written, when the sketch closes
+	**/
+	public void startRecording(FrameRecorder frameRecorder) {
+		if (frameRecorder.getWidth() != screens[0].getWidth() || frameRecorder.getHeight() != screens[0].getHeight()) {
+			throw new IllegalArgumentException("Frame recorder size does not match the screen size");
+		}
+		stopRecording();
+		recorder = frameRecorder;
+	}
+
+	/**
+	 * Starts recording every drawn frame to the given path in the given format (see FrameRecorder),
+	 * dropping frames when more than 8 of them are waiting to be written, and returns the recorder
+	**/
+	public FrameRecorder startRecording(String path, int format) {
+		final FrameRecorder frameRecorder = new FrameRecorder(path, format, screens[0].getWidth(), screens[0].getHeight(), 8, FrameRecorder.POLICY_DROP);
+		startRecording(frameRecorder);
+		return frameRecorder;
+	}
+
+	/** Stops recording frames, waiting for every recorded frame to be written (does nothing if not recording) **/
+	public void stopRecording() {
+		final FrameRecorder frameRecorder = recorder;
+		recorder = null;
+		if (frameRecorder != null) {
+			frameRecorder.stop();
+		}
+	}
+
+	/**
+	 * Toggles adaptive quality, which is false by default
+	 * When enabled, the quality level goes down (up to 3) whenever frames are missed and back up when there is enough headroom,
+	 * and qualityChanged() is called so the sketch can skip expensive drawings
+	**/
+	public void adaptiveQuality(boolean toggle) {
+		adaptiveQuality = toggle;
+	}
+
+	/**
+	 * Toggles adaptive resolution, which is false by default (enabling it also enables adaptive quality)
+	 * When enabled, the screen resolution is also divided by the quality level + 1 and the frames are scaled up to fill the window:
+	 * the sketch screen is replaced by one of the new size keeping the same drawing state, so draw relative to its size
+	 * (or set it up again in qualityChanged()), and input mouse canvas coordinates follow it
+	**/
+	public void adaptiveResolution(boolean toggle) {
+		adaptiveResolution = toggle;
+		if (toggle) {
+			adaptiveQuality = true;
+		}
+	}
+
+	/** Toggles the profiler overlay, drawn over every frame in the top left corner (see Profiler) **/
+	public void showProfiler(boolean toggle) {
+		showProfiler = toggle;
+	}
+
+	/**
+	 * Sets the power policy (one of the POWER_* constants) followed while the window is in the given state (one WINDOW_* flag)
+	 * By default iconified and occluded windows suspend frames, and unfocused ones run at full rate
+	 * When the window is in several states the strongest policy is followed (see choosePowerPolicy())
+	**/
+	public void setPowerPolicy(int windowState, int policy) {
+		final int index = Integer.numberOfTrailingZeros(windowState);
+		if (Integer.bitCount(windowState) != 1 || index >= powerPolicies.length || policy < POWER_FULL || policy > POWER_SUSPEND) {
+			throw new IllegalArgumentException("Invalid power policy for window state " + windowState);
+		}
+		powerPolicies[index] = policy;
+		// choose again
+		powerState = -1;
+		loopClock.wake();
+	}
+
+	/**
+	 * Loads the assets at the given paths in the background, in parallel (see Assets.preload()), to be used through the Assets cache
+	 * Call it in setup(): until they are all loaded update() is not called, and renderLoading() is called instead of render()
+	**/
+	public void preload(String... paths) {
+		final int previous = preloads == null ? 0 : preloads.length;
+		preloads = preloads == null ? new CompletableFuture<?>[paths.length] : Arrays.copyOf(preloads, previous + paths.length);
+		for (int i = 0; i < paths.length; i++) {
+			preloads[previous + i] = Assets.preload(paths[i]);
+		}
+	}
+
+	/** Sets the amount of frames per second drawn under POWER_THROTTLE **/
+	public void setIdleFrameRate(int idleFrameRate) {
+		this.idleFrameRate = idleFrameRate;
+	}
+
+	/** Runs the sketch at full rate for at least two seconds whatever the state of its window, e.g. when what it shows changed **/
+	public void wake() {
+		awakeUntil = System.nanoTime() + WAKE_DURATION;
+		if (powerPolicy != POWER_FULL) {
+			loopClock.wake();
+		}
+	}
+
     // GETTERS
     public int getWindowWidth() {
         return windowWidth;
@@ -214,6 +1125,11 @@ public abstract class Sketch {
         return pixelScale;
     }
 
+	/** Returns the format the screen pixels are stored in (one of the Screen.FORMAT_* constants) **/
+	public int getPixelFormat() {
+		return pixelFormat;
+	}
+
 	/** Returns the current Ticks (Updates) per Second count **/
 	public int getTPS() {
 		return tps;
@@ -224,6 +1140,36 @@ public abstract class Sketch {
 		return fps;
 	}
 
+	/** Returns how many ticks were skipped since the sketch started because the sketch could not keep up with the tick rate **/
+	public long getDroppedTicks() {
+		return droppedTicks;
+	}
+
+	/** Returns how many ticks were run late, right after another one, to catch up with the tick rate since the sketch started **/
+	public long getCaughtUpTicks() {
+		return caughtUpTicks;
+	}
+
+	/** Returns the current quality level (0 is the full quality, always 0 unless adaptive quality is enabled) **/
+	public int getQuality() {
+		return quality;
+	}
+
+	/** Returns the WINDOW_* flags of the window state (0 when it is shown and focused, or without a window) **/
+	public int getWindowState() {
+		return windowState;
+	}
+
+	/** Returns the power policy in effect (POWER_FULL while the window is shown and focused, or while the sketch is awake) **/
+	public int getPowerPolicy() {
+		return powerPolicy;
+	}
+
+	/** Returns the profiler timing every phase of the sketch loop (update, render, presentation...) **/
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
 	/** Returns a time integer indicating how many tick calls have been made **/
 	public int getTime() {
 		return time;
@@ -238,4 +1184,14 @@ public abstract class Sketch {
     public void autoClear(boolean toggle) {
         autoClear = toggle;
     }
-}
\ No newline at end of file
+
+	/**
+	 * A frame recorded by the update thread, with the resolution level of the screen it was recorded on
+	 * (which picks the frame screen it is drawn on) and whether that screen renders in parallel
+	**/
+	private static final class Frame {
+		final DisplayList list = new DisplayList();
+		int level = 0;
+		boolean parallel = false;
+	}
+}
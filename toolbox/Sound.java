@@ -1,5 +1,6 @@
 package toolbox;
 
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.FloatControl;
 
@@ -13,6 +14,16 @@ public class Sound {
 		clip = FileHandler.loadSound(path);
 	}
 
+	/** Creates a sound playing the given decoded samples (see Assets.sound()) **/
+	Sound(Assets.SoundData sound) {
+		try {
+			clip = AudioSystem.getClip();
+			clip.open(sound.format(), sound.data(), 0, sound.data().length);
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+	}
+
 	public void play() {
 		try {
 			new Thread() {
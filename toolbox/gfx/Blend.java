@@ -0,0 +1,240 @@
+package toolbox.gfx;
+
+/**
+ * Row span blending kernels for packed pixels in one of the Screen.FORMAT_* pixel formats:
+ * straight ARGB (format 0xAARRGGBB), opaque RGB (ARGB whose alpha is always 255) or premultiplied ARGB
+ * Kernels take their src colors in the dst format space (see source()): straight for ARGB and RGB, premultiplied otherwise
+ * The SIMD kernels in BlendSimd are used when the jdk.incubator.vector module is available
+ * (run with "--add-modules jdk.incubator.vector"), otherwise every pixel goes through the scalar code below
+ * Both paths compute the same exact integer results, so they produce exactly the same pixels
+**/
+final class Blend {
+
+    private static final boolean SIMD = isSimdAvailable();
+
+    private Blend() {}
+
+    private static boolean isSimdAvailable() {
+        try {
+            return BlendSimd.isAvailable();
+        } catch (LinkageError e) {
+            // jdk.incubator.vector is not part of the module graph
+            return false;
+        }
+    }
+
+    /** Returns true if the blending kernels run on the Vector API **/
+    static boolean isSimd() {
+        return SIMD;
+    }
+
+    /** Blends the given straight ARGB color over the pixels in [from, to) **/
+    static void fill(int[] dst, int from, int to, int color, int mode, int format) {
+        final int src = source(color, Screen.FORMAT_ARGB, format);
+        if (SIMD) {
+            BlendSimd.fill(dst, from, to, src, mode, format);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            dst[i] = blend(dst[i], src, mode, format);
+        }
+    }
+
+    /** Blends length pixels of src starting at srcFrom over the pixels of dst starting at dstFrom **/
+    static void blit(int[] src, int srcFrom, int srcFormat, int[] dst, int dstFrom, int dstFormat, int length, int mode) {
+        // unpremultiplying divides, it is left to the scalar loop
+        final boolean premultiply = dstFormat == Screen.FORMAT_ARGB_PRE && srcFormat == Screen.FORMAT_ARGB;
+        final boolean unpremultiply = srcFormat == Screen.FORMAT_ARGB_PRE && dstFormat != Screen.FORMAT_ARGB_PRE;
+        if (SIMD && !unpremultiply) {
+            BlendSimd.blit(src, srcFrom, dst, dstFrom, length, mode, dstFormat, premultiply);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstFrom + i] = blend(dst[dstFrom + i], source(src[srcFrom + i], srcFormat, dstFormat), mode, dstFormat);
+        }
+    }
+
+    /** Same as blit(), with the src pixels alpha scaled by the given opacity (ranged [0, 255]) **/
+    static void blit(int[] src, int srcFrom, int srcFormat, int[] dst, int dstFrom, int dstFormat, int length, int mode, int opacity) {
+        if (opacity >= 255) {
+            blit(src, srcFrom, srcFormat, dst, dstFrom, dstFormat, length, mode);
+            return;
+        }
+        if (opacity <= 0) return;
+
+        for (int i = 0; i < length; i++) {
+            final int color = source(src[srcFrom + i], srcFormat, dstFormat);
+            final int faded = dstFormat == Screen.FORMAT_ARGB_PRE
+                ? scale(color, opacity)
+                : (div255((color >>> 24) * opacity) << 24) | (color & 0x00ffffff);
+            dst[dstFrom + i] = blend(dst[dstFrom + i], faded, mode, dstFormat);
+        }
+    }
+
+    // PIXEL FORMATS
+
+    /** Returns the given pixel of the src format as a src color of the kernels of the dst format **/
+    static int source(int pixel, int srcFormat, int dstFormat) {
+        // opaque pixels are the same in every format
+        if (srcFormat == dstFormat || srcFormat == Screen.FORMAT_RGB) return pixel;
+        if (dstFormat == Screen.FORMAT_ARGB_PRE) return premultiply(pixel);
+        if (srcFormat == Screen.FORMAT_ARGB_PRE) return unpremultiply(pixel);
+        return pixel;
+    }
+
+    /** Returns the pixel of the given format storing the given straight ARGB color **/
+    static int toFormat(int color, int format) {
+        switch (format) {
+            case Screen.FORMAT_RGB:
+                return color | 0xff000000;
+            case Screen.FORMAT_ARGB_PRE:
+                return premultiply(color);
+            default:
+                return color;
+        }
+    }
+
+    /** Returns the straight ARGB color of the given pixel of the given format **/
+    static int toArgb(int pixel, int format) {
+        return format == Screen.FORMAT_ARGB_PRE ? unpremultiply(pixel) : pixel;
+    }
+
+    static int premultiply(int color) {
+        final int a = color >>> 24;
+        if (a == 255) return color;
+        return (a << 24) | (div255(((color >>> 16) & 0xff) * a) << 16) | (div255(((color >>> 8) & 0xff) * a) << 8) | div255((color & 0xff) * a);
+    }
+
+    static int unpremultiply(int pixel) {
+        final int a = pixel >>> 24;
+        if (a == 255) return pixel;
+        if (a == 0) return 0;
+        return (a << 24) | (unpremultiply((pixel >>> 16) & 0xff, a) << 16) | (unpremultiply((pixel >>> 8) & 0xff, a) << 8) | unpremultiply(pixel & 0xff, a);
+    }
+
+    private static int unpremultiply(int c, int a) {
+        return Math.min(255, (c * 255 + a / 2) / a);
+    }
+
+    /** Returns every channel of the given color scaled by the given factor (ranged [0, 255]) **/
+    private static int scale(int color, int factor) {
+        return (div255((color >>> 24) * factor) << 24) | (div255(((color >>> 16) & 0xff) * factor) << 16)
+            | (div255(((color >>> 8) & 0xff) * factor) << 8) | div255((color & 0xff) * factor);
+    }
+
+    // KERNELS
+
+    /** Returns the given src color (in the format kernel space) blended over the given dst pixel of the given format **/
+    static int blend(int dst, int src, int mode, int format) {
+        switch (format) {
+            case Screen.FORMAT_RGB:
+                return blendOpaque(dst, src, mode);
+            case Screen.FORMAT_ARGB_PRE:
+                return blendPremultiplied(dst, src, mode);
+            default:
+                return blend(dst, src, mode);
+        }
+    }
+
+    /**
+     * Returns the given straight src color blended over the given straight dst color
+     * The channels are weighted by their alpha and divided by the output alpha, as premultiplied ones would be
+    **/
+    static int blend(int dst, int src, int mode) {
+        final int sa = src >>> 24;
+        if (sa == 0) return dst;
+        if (mode == Screen.BLEND_REPLACE || (sa == 255 && mode == Screen.BLEND_SOURCE_OVER)) return src;
+
+        final int da = dst >>> 24;
+        // over an opaque dst the output alpha is 255, there is nothing to divide by
+        if (da == 255) return blendOpaque(dst, src, mode);
+
+        final int inv = 255 - sa;
+        // dst and output alpha scaled by 255, the src weight being sa * 255
+        final int dw = da * inv;
+        final int aw = sa * 255 + dw;
+        final int a = sa + div255(dw);
+        final int r = channel((dst >>> 16) & 0xff, (src >>> 16) & 0xff, sa, da, dw, aw, mode);
+        final int g = channel((dst >>> 8) & 0xff, (src >>> 8) & 0xff, sa, da, dw, aw, mode);
+        final int b = channel(dst & 0xff, src & 0xff, sa, da, dw, aw, mode);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Same as blend() over an opaque dst, whose alpha does not have to be computed **/
+    private static int blendOpaque(int dst, int src, int mode) {
+        final int sa = src >>> 24;
+        if (mode == Screen.BLEND_REPLACE) return sa == 0 ? dst : src | 0xff000000;
+        if (sa == 0) return dst | 0xff000000;
+        if (sa == 255 && mode == Screen.BLEND_SOURCE_OVER) return src;
+
+        final int inv = 255 - sa;
+        final int r = opaqueChannel((dst >>> 16) & 0xff, (src >>> 16) & 0xff, sa, inv, mode);
+        final int g = opaqueChannel((dst >>> 8) & 0xff, (src >>> 8) & 0xff, sa, inv, mode);
+        final int b = opaqueChannel(dst & 0xff, src & 0xff, sa, inv, mode);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /** Returns the given premultiplied src color blended over the given premultiplied dst color **/
+    private static int blendPremultiplied(int dst, int src, int mode) {
+        final int sa = src >>> 24;
+        if (mode == Screen.BLEND_REPLACE) return sa == 0 ? dst : src;
+
+        final int inv = 255 - sa;
+        final int da = dst >>> 24;
+        final int a = sa + div255(da * inv);
+        final int r = premultipliedChannel((dst >>> 16) & 0xff, (src >>> 16) & 0xff, inv, da, mode);
+        final int g = premultipliedChannel((dst >>> 8) & 0xff, (src >>> 8) & 0xff, inv, da, mode);
+        final int b = premultipliedChannel(dst & 0xff, src & 0xff, inv, da, mode);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Returns the premultiplied result of the given channels scaled by 255 * 255, divided by the output alpha aw (scaled by 255)
+     * Over an opaque dst, it is exactly opaqueChannel()
+    **/
+    private static int channel(int dc, int sc, int sa, int da, int dw, int aw, int mode) {
+        final int c;
+        switch (mode) {
+            case Screen.BLEND_ADD:
+                c = (sc * sa + dc * da) * 255;
+                break;
+            case Screen.BLEND_MULTIPLY:
+                // the src shows through where the dst is transparent: Sc * (1 - Da) + Dc * (1 - Sa) + Sc * Dc, premultiplied
+                c = dc * da * (255 - sa + div255(sc * sa)) + sc * sa * (255 - da);
+                break;
+            default:
+                c = sc * sa * 255 + dc * dw;
+        }
+        return Math.min(255, (c + aw / 2) / aw);
+    }
+
+    /** Same as channel() over an opaque dst, where the output alpha is 255 **/
+    private static int opaqueChannel(int dc, int sc, int sa, int inv, int mode) {
+        switch (mode) {
+            case Screen.BLEND_ADD:
+                return Math.min(255, dc + div255(sc * sa));
+            case Screen.BLEND_MULTIPLY:
+                return div255(dc * (inv + div255(sc * sa)));
+            default:
+                return div255(sc * sa + dc * inv);
+        }
+    }
+
+    /** Same as channel() with both channels already multiplied by their alpha (the min() only guards against invalid pixels) **/
+    private static int premultipliedChannel(int dc, int sc, int inv, int da, int mode) {
+        switch (mode) {
+            case Screen.BLEND_ADD:
+                return Math.min(255, dc + sc);
+            case Screen.BLEND_MULTIPLY:
+                return Math.min(255, div255(dc * Math.min(255, inv + sc) + sc * (255 - da)));
+            default:
+                return Math.min(255, sc + div255(dc * inv));
+        }
+    }
+
+    /** Returns x / 255 rounded to the nearest integer (exact for x in [0, 255 * 255]) **/
+    static int div255(int x) {
+        x += 128;
+        return (x + (x >>> 8)) >>> 8;
+    }
+}
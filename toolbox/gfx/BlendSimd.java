@@ -0,0 +1,249 @@
+package toolbox.gfx;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the Blend kernels, only loaded through Blend
+ * Loading this class fails with a LinkageError when jdk.incubator.vector is not available
+**/
+final class BlendSimd {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    // same shape, as many lanes
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private BlendSimd() {}
+
+    static boolean isAvailable() {
+        // a single lane vector would only add overhead to the scalar loop
+        return SPECIES.length() > 1;
+    }
+
+    /** Blends the given src color (in the format kernel space) over the pixels in [from, to) **/
+    static void fill(int[] dst, int from, int to, int color, int mode, int format) {
+        final IntVector src = IntVector.broadcast(SPECIES, color);
+        final int bound = from + SPECIES.loopBound(to - from);
+
+        // one loop per format: vectors merged from different branches would be boxed
+        int i = from;
+        switch (format) {
+            case Screen.FORMAT_RGB:
+                for (; i < bound; i += SPECIES.length()) {
+                    blendOpaque(IntVector.fromArray(SPECIES, dst, i), src, mode).intoArray(dst, i);
+                }
+                break;
+            case Screen.FORMAT_ARGB_PRE:
+                for (; i < bound; i += SPECIES.length()) {
+                    blendPremultiplied(IntVector.fromArray(SPECIES, dst, i), src, mode).intoArray(dst, i);
+                }
+                break;
+            default:
+                for (; i < bound; i += SPECIES.length()) {
+                    final IntVector d = IntVector.fromArray(SPECIES, dst, i);
+                    if (mode != Screen.BLEND_REPLACE && isOpaque(d)) {
+                        blendOpaque(d, src, mode).intoArray(dst, i);
+                    } else {
+                        blend(d, src, mode).intoArray(dst, i);
+                    }
+                }
+        }
+        for (; i < to; i++) {
+            dst[i] = Blend.blend(dst[i], color, mode, format);
+        }
+    }
+
+    /** Blends length src pixels over the dst pixels of the given format, src pixels being straight ARGB ones if premultiply is true **/
+    static void blit(int[] src, int srcFrom, int[] dst, int dstFrom, int length, int mode, int format, boolean premultiply) {
+        final int bound = SPECIES.loopBound(length);
+
+        int i = 0;
+        switch (format) {
+            case Screen.FORMAT_RGB:
+                for (; i < bound; i += SPECIES.length()) {
+                    final IntVector s = IntVector.fromArray(SPECIES, src, srcFrom + i);
+                    blendOpaque(IntVector.fromArray(SPECIES, dst, dstFrom + i), s, mode).intoArray(dst, dstFrom + i);
+                }
+                break;
+            case Screen.FORMAT_ARGB_PRE:
+                if (premultiply) {
+                    for (; i < bound; i += SPECIES.length()) {
+                        final IntVector s = premultiply(IntVector.fromArray(SPECIES, src, srcFrom + i));
+                        blendPremultiplied(IntVector.fromArray(SPECIES, dst, dstFrom + i), s, mode).intoArray(dst, dstFrom + i);
+                    }
+                } else {
+                    for (; i < bound; i += SPECIES.length()) {
+                        final IntVector s = IntVector.fromArray(SPECIES, src, srcFrom + i);
+                        blendPremultiplied(IntVector.fromArray(SPECIES, dst, dstFrom + i), s, mode).intoArray(dst, dstFrom + i);
+                    }
+                }
+                break;
+            default:
+                for (; i < bound; i += SPECIES.length()) {
+                    final IntVector s = IntVector.fromArray(SPECIES, src, srcFrom + i);
+                    final IntVector d = IntVector.fromArray(SPECIES, dst, dstFrom + i);
+                    if (mode != Screen.BLEND_REPLACE && isOpaque(d)) {
+                        blendOpaque(d, s, mode).intoArray(dst, dstFrom + i);
+                    } else {
+                        blend(d, s, mode).intoArray(dst, dstFrom + i);
+                    }
+                }
+        }
+        for (; i < length; i++) {
+            final int s = premultiply ? Blend.premultiply(src[srcFrom + i]) : src[srcFrom + i];
+            dst[dstFrom + i] = Blend.blend(dst[dstFrom + i], s, mode, format);
+        }
+    }
+
+    /** Returns true if every dst pixel is opaque: Blend.blend() is then Blend.blendOpaque() (but when replacing), which does not divide **/
+    private static boolean isOpaque(IntVector dst) {
+        return dst.compare(VectorOperators.UNSIGNED_GE, 0xff000000).allTrue();
+    }
+
+    /** Same math as Blend.blend(), one pixel per lane **/
+    private static IntVector blend(IntVector dst, IntVector src, int mode) {
+        final IntVector sa = src.lanewise(VectorOperators.LSHR, 24);
+        final VectorMask<Integer> visible = sa.compare(VectorOperators.NE, 0);
+
+        if (mode == Screen.BLEND_REPLACE) {
+            return dst.blend(src, visible);
+        }
+
+        final IntVector da = dst.lanewise(VectorOperators.LSHR, 24);
+        final IntVector inv = IntVector.broadcast(SPECIES, 255).sub(sa);
+        final IntVector dw = da.mul(inv);
+        // the max() only avoids dividing by zero in the lanes whose src is transparent, which keep their dst pixel
+        final IntVector aw = sa.mul(255).add(dw).max(1);
+        final FloatVector reciprocal = FloatVector.broadcast(FLOAT_SPECIES, 1f).div((FloatVector) aw.convert(VectorOperators.I2F, 0));
+        final IntVector a = sa.add(div255(dw));
+        final IntVector r = channel(dst, src, 16, sa, da, dw, aw, reciprocal, mode);
+        final IntVector g = channel(dst, src, 8, sa, da, dw, aw, reciprocal, mode);
+        final IntVector b = channel(dst, src, 0, sa, da, dw, aw, reciprocal, mode);
+
+        return dst.blend(a.lanewise(VectorOperators.LSHL, 24)
+            .or(r.lanewise(VectorOperators.LSHL, 16))
+            .or(g.lanewise(VectorOperators.LSHL, 8))
+            .or(b), visible);
+    }
+
+    /** Same math as Blend.blendOpaque(), one pixel per lane **/
+    private static IntVector blendOpaque(IntVector dst, IntVector src, int mode) {
+        final IntVector sa = src.lanewise(VectorOperators.LSHR, 24);
+
+        if (mode == Screen.BLEND_REPLACE) {
+            final VectorMask<Integer> visible = sa.compare(VectorOperators.NE, 0);
+            return dst.blend(src.or(0xff000000), visible);
+        }
+
+        final IntVector inv = IntVector.broadcast(SPECIES, 255).sub(sa);
+        final IntVector r = opaqueChannel(dst, src, 16, sa, inv, mode);
+        final IntVector g = opaqueChannel(dst, src, 8, sa, inv, mode);
+        final IntVector b = opaqueChannel(dst, src, 0, sa, inv, mode);
+
+        return r.lanewise(VectorOperators.LSHL, 16)
+            .or(g.lanewise(VectorOperators.LSHL, 8))
+            .or(b)
+            .or(0xff000000);
+    }
+
+    /** Same math as Blend.blendPremultiplied(), one pixel per lane **/
+    private static IntVector blendPremultiplied(IntVector dst, IntVector src, int mode) {
+        final IntVector sa = src.lanewise(VectorOperators.LSHR, 24);
+
+        if (mode == Screen.BLEND_REPLACE) {
+            final VectorMask<Integer> visible = sa.compare(VectorOperators.NE, 0);
+            return dst.blend(src, visible);
+        }
+
+        final IntVector inv = IntVector.broadcast(SPECIES, 255).sub(sa);
+        final IntVector da = dst.lanewise(VectorOperators.LSHR, 24);
+        final IntVector a = sa.add(div255(da.mul(inv)));
+        final IntVector r = premultipliedChannel(dst, src, 16, inv, da, mode);
+        final IntVector g = premultipliedChannel(dst, src, 8, inv, da, mode);
+        final IntVector b = premultipliedChannel(dst, src, 0, inv, da, mode);
+
+        return a.lanewise(VectorOperators.LSHL, 24)
+            .or(r.lanewise(VectorOperators.LSHL, 16))
+            .or(g.lanewise(VectorOperators.LSHL, 8))
+            .or(b);
+    }
+
+    private static IntVector channel(IntVector dst, IntVector src, int shift, IntVector sa, IntVector da, IntVector dw, IntVector aw,
+                                     FloatVector reciprocal, int mode) {
+        final IntVector dc = dst.lanewise(VectorOperators.LSHR, shift).and(0xff);
+        final IntVector sc = src.lanewise(VectorOperators.LSHR, shift).and(0xff);
+
+        final IntVector c;
+        switch (mode) {
+            case Screen.BLEND_ADD:
+                c = sc.mul(sa).add(dc.mul(da)).mul(255);
+                break;
+            case Screen.BLEND_MULTIPLY:
+                c = dc.mul(da).mul(IntVector.broadcast(SPECIES, 255).sub(sa).add(div255(sc.mul(sa))))
+                    .add(sc.mul(sa).mul(IntVector.broadcast(SPECIES, 255).sub(da)));
+                break;
+            default:
+                c = sc.mul(sa).mul(255).add(dc.mul(dw));
+        }
+        return divide(c.add(aw.lanewise(VectorOperators.LSHR, 1)), aw, reciprocal).min(255);
+    }
+
+    private static IntVector opaqueChannel(IntVector dst, IntVector src, int shift, IntVector sa, IntVector inv, int mode) {
+        final IntVector dc = dst.lanewise(VectorOperators.LSHR, shift).and(0xff);
+        final IntVector sc = src.lanewise(VectorOperators.LSHR, shift).and(0xff);
+
+        switch (mode) {
+            case Screen.BLEND_ADD:
+                return dc.add(div255(sc.mul(sa))).min(255);
+            case Screen.BLEND_MULTIPLY:
+                return div255(dc.mul(inv.add(div255(sc.mul(sa)))));
+            default:
+                return div255(sc.mul(sa).add(dc.mul(inv)));
+        }
+    }
+
+    private static IntVector premultipliedChannel(IntVector dst, IntVector src, int shift, IntVector inv, IntVector da, int mode) {
+        final IntVector dc = dst.lanewise(VectorOperators.LSHR, shift).and(0xff);
+        final IntVector sc = src.lanewise(VectorOperators.LSHR, shift).and(0xff);
+
+        switch (mode) {
+            case Screen.BLEND_ADD:
+                return dc.add(sc).min(255);
+            case Screen.BLEND_MULTIPLY:
+                return div255(dc.mul(inv.add(sc).min(255)).add(sc.mul(IntVector.broadcast(SPECIES, 255).sub(da)))).min(255);
+            default:
+                return sc.add(div255(dc.mul(inv))).min(255);
+        }
+    }
+
+    /** Same math as Blend.premultiply() **/
+    private static IntVector premultiply(IntVector color) {
+        final IntVector a = color.lanewise(VectorOperators.LSHR, 24);
+        final IntVector r = div255(color.lanewise(VectorOperators.LSHR, 16).and(0xff).mul(a));
+        final IntVector g = div255(color.lanewise(VectorOperators.LSHR, 8).and(0xff).mul(a));
+        final IntVector b = div255(color.and(0xff).mul(a));
+        return a.lanewise(VectorOperators.LSHL, 24)
+            .or(r.lanewise(VectorOperators.LSHL, 16))
+            .or(g.lanewise(VectorOperators.LSHL, 8))
+            .or(b);
+    }
+
+    /**
+     * Returns n / d rounded down, as the scalar integer division does (for n in [0, 2^26) and d in [1, 255 * 255])
+     * The quotient estimated from the float reciprocal of d is off by at most one, the remainder tells which way
+    **/
+    private static IntVector divide(IntVector n, IntVector d, FloatVector reciprocal) {
+        IntVector q = (IntVector) ((FloatVector) n.convert(VectorOperators.I2F, 0)).mul(reciprocal).convert(VectorOperators.F2I, 0);
+        final IntVector remainder = n.sub(q.mul(d));
+        q = q.add(1, remainder.compare(VectorOperators.GE, d));
+        return q.sub(1, remainder.compare(VectorOperators.LT, 0));
+    }
+
+    private static IntVector div255(IntVector x) {
+        x = x.add(128);
+        return x.add(x.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+    }
+}
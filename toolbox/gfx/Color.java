@@ -37,7 +37,7 @@ public class Color {
     public static final Color LIGHT_MAGENTA = new Color(255, 200, 255);
     public static final Color LIGHT_YELLOW = new Color(255, 255, 200);
     
-    private int r, g, b, a; // for now alpha transparency and color sovrapposition are not supported
+    private int r, g, b, a; // alpha is only taken into account by the Screen blend modes (see Screen.blend())
 
     public Color(int r, int g, int b) {
         this.r = r;
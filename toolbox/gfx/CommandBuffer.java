@@ -0,0 +1,45 @@
+package toolbox.gfx;
+
+import java.util.Arrays;
+
+/** A growable list of pooled draw commands, reused from one recording to the next to avoid allocations **/
+final class CommandBuffer {
+
+    // the first size commands are in use, the rest are kept for reuse
+    private DrawCommand[] commands = new DrawCommand[64];
+    private int size = 0;
+
+    /** Returns a pooled command of the given kind, appended to the recorded ones **/
+    DrawCommand add(int kind) {
+        if (size == commands.length) {
+            commands = Arrays.copyOf(commands, size * 2);
+        }
+        if (commands[size] == null) {
+            commands[size] = new DrawCommand();
+        }
+
+        final DrawCommand command = commands[size++];
+        command.kind = kind;
+        command.image = null;
+        command.atlas = null;
+        return command;
+    }
+
+    DrawCommand get(int index) {
+        return commands[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Forgets every recorded command **/
+    void clear() {
+        // do not keep images alive through the pool
+        for (int i = 0; i < size; i++) {
+            commands[i].image = null;
+            commands[i].atlas = null;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,163 @@
+package toolbox.gfx;
+
+/**
+ * A small set of rectangles covering the changed pixels of a screen,
+ * in pixels array columns and rows (both included, row 0 is the top one)
+ * Rectangles are merged as they are added whenever that does not cover too many unchanged pixels,
+ * and the set never holds more than MAX_RECTS of them
+**/
+public class DirtyRects {
+
+    public static final int MAX_RECTS = 32;
+
+    // two rectangles are merged if the pixels their union covers that are in neither of them
+    // are at most MERGE_WASTE plus a quarter of the pixels they cover (copying a few more pixels is cheaper than handling one more rectangle)
+    private static final long MERGE_WASTE = 1024;
+
+    private final int[] x0 = new int[MAX_RECTS];
+    private final int[] y0 = new int[MAX_RECTS];
+    private final int[] x1 = new int[MAX_RECTS];
+    private final int[] y1 = new int[MAX_RECTS];
+    private int size = 0;
+
+    // the rectangle that grew last, most draw calls touch the area right next to the previous one
+    private int last = 0;
+
+    /** Adds the given rectangle (both corners included) **/
+    public void add(int ax0, int ay0, int ax1, int ay1) {
+        if (ax0 > ax1 || ay0 > ay1) return;
+
+        if (size > 0 && merge(last, ax0, ay0, ax1, ay1, false)) return;
+        for (int i = 0; i < size; i++) {
+            if (i != last && merge(i, ax0, ay0, ax1, ay1, false)) return;
+        }
+
+        if (size < MAX_RECTS) {
+            x0[size] = ax0;
+            y0[size] = ay0;
+            x1[size] = ax1;
+            y1[size] = ay1;
+            last = size++;
+            return;
+        }
+
+        // no room left: grow the rectangle that grows the least
+        int best = 0;
+        long bestGrowth = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            final long growth = area(Math.min(x0[i], ax0), Math.min(y0[i], ay0), Math.max(x1[i], ax1), Math.max(y1[i], ay1))
+                - area(x0[i], y0[i], x1[i], y1[i]);
+            if (growth < bestGrowth) {
+                best = i;
+                bestGrowth = growth;
+            }
+        }
+        merge(best, ax0, ay0, ax1, ay1, true);
+    }
+
+    /** Adds every rectangle of the given set **/
+    public void addAll(DirtyRects rects) {
+        for (int i = 0; i < rects.size; i++) {
+            add(rects.x0[i], rects.y0[i], rects.x1[i], rects.y1[i]);
+        }
+    }
+
+    /** Replaces the content of this set with the one of the given set **/
+    public void set(DirtyRects rects) {
+        clear();
+        addAll(rects);
+    }
+
+    public void clear() {
+        size = 0;
+        last = 0;
+    }
+
+    /** Returns the number of rectangles **/
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the amount of pixels covered by the rectangles **/
+    public long area() {
+        long area = 0;
+        for (int i = 0; i < size; i++) {
+            area += area(x0[i], y0[i], x1[i], y1[i]);
+        }
+        return area;
+    }
+
+    public int getX0(int i) {
+        return x0[i];
+    }
+
+    public int getY0(int i) {
+        return y0[i];
+    }
+
+    public int getX1(int i) {
+        return x1[i];
+    }
+
+    public int getY1(int i) {
+        return y1[i];
+    }
+
+    /** Grows the rectangle i to cover the given one if that is worth it (or if forced), returns true if it did **/
+    private boolean merge(int i, int ax0, int ay0, int ax1, int ay1, boolean force) {
+        if (!force && !isWorthMerging(i, ax0, ay0, ax1, ay1)) return false;
+
+        x0[i] = Math.min(x0[i], ax0);
+        y0[i] = Math.min(y0[i], ay0);
+        x1[i] = Math.max(x1[i], ax1);
+        y1[i] = Math.max(y1[i], ay1);
+
+        // the grown rectangle may now be worth merging with others
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int j = 0; j < size; j++) {
+                if (j == i || !isWorthMerging(i, x0[j], y0[j], x1[j], y1[j])) continue;
+
+                x0[i] = Math.min(x0[i], x0[j]);
+                y0[i] = Math.min(y0[i], y0[j]);
+                x1[i] = Math.max(x1[i], x1[j]);
+                y1[i] = Math.max(y1[i], y1[j]);
+
+                // the last rectangle takes the place of the removed one
+                size--;
+                x0[j] = x0[size];
+                y0[j] = y0[size];
+                x1[j] = x1[size];
+                y1[j] = y1[size];
+                if (i == size) i = j;
+
+                merged = true;
+                break;
+            }
+        }
+
+        last = i;
+        return true;
+    }
+
+    private boolean isWorthMerging(int i, int ax0, int ay0, int ax1, int ay1) {
+        final long area = area(x0[i], y0[i], x1[i], y1[i]);
+        final long otherArea = area(ax0, ay0, ax1, ay1);
+        final long union = area(Math.min(x0[i], ax0), Math.min(y0[i], ay0), Math.max(x1[i], ax1), Math.max(y1[i], ay1));
+        final long overlap = area(Math.max(x0[i], ax0), Math.max(y0[i], ay0), Math.min(x1[i], ax1), Math.min(y1[i], ay1));
+
+        // pixels in the union that are in neither of the two rectangles
+        final long waste = union - area - otherArea + overlap;
+        return waste <= MERGE_WASTE + (area + otherArea) / 4;
+    }
+
+    private static long area(int x0, int y0, int x1, int y1) {
+        if (x0 > x1 || y0 > y1) return 0;
+        return (long) (x1 - x0 + 1) * (y1 - y0 + 1);
+    }
+}
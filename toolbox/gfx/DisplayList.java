@@ -0,0 +1,88 @@
+package toolbox.gfx;
+
+/**
+ * A recorded sequence of Screen draw calls, together with the state each of them depends on
+ * (fill and outline colors, stroke, brush, blend mode, filter, translation and padding)
+ * Record it with screen.beginRecording(list) ... screen.endRecording() and draw it any number of times with screen.draw(list)
+ * Lists that are the same every frame (HUDs, grids, debug layers) only need to be recorded once
+**/
+public class DisplayList {
+
+    final CommandBuffer commands = new CommandBuffer();
+
+    // used by Screen.draw() to put its own state back after drawing the list
+    final DrawCommand state = new DrawCommand();
+
+    // cached drawing of the list, valid until the list is recorded again or invalidated
+    private Screen layer;
+    private boolean layerValid = false;
+
+    // pixels array columns and rows (both included) covered by the list, set when the layer is drawn
+    int x0, y0, x1, y1;
+
+    // times the list was drawn since it was recorded
+    int draws = 0;
+
+    /** Forgets every recorded draw call **/
+    public void clear() {
+        commands.clear();
+        draws = 0;
+        invalidate();
+    }
+
+    /**
+     * Marks the cached drawing of the list as outdated, so it is drawn again the next time the list is drawn
+     * Call it after changing the pixels of an image the list draws
+    **/
+    public void invalidate() {
+        layerValid = false;
+    }
+
+    /** Returns the number of recorded draw calls **/
+    public int size() {
+        return commands.size();
+    }
+
+    public boolean isEmpty() {
+        return commands.size() == 0;
+    }
+
+    /**
+     * Returns true if drawing the list onto a screen is the same as copying a cached drawing of it,
+     * that is when every draw call overwrites pixels (BLEND_REPLACE) without reading them, and none clears the screen
+    **/
+    public boolean isCacheable() {
+        for (int i = 0; i < commands.size(); i++) {
+            final DrawCommand command = commands.get(i);
+            if (command.blendMode != Screen.BLEND_REPLACE || command.kind == DrawCommand.CLEAR) return false;
+        }
+        return true;
+    }
+
+    /** Returns the cached drawing of the list for a screen of the given size, drawing it first if needed **/
+    Screen layer(int width, int height) {
+        if (layer == null || layer.getWidth() != width || layer.getHeight() != height) {
+            layer = new Screen(width, height);
+            layerValid = false;
+        }
+        if (layerValid) return layer;
+
+        layer.clear(0);
+        x0 = width;
+        y0 = height;
+        x1 = -1;
+        y1 = -1;
+        for (int i = 0; i < commands.size(); i++) {
+            final DrawCommand command = commands.get(i);
+            if (!command.computeBounds(width, height)) continue;
+
+            layer.replay(command);
+            x0 = Math.min(x0, command.x0);
+            y0 = Math.min(y0, command.y0);
+            x1 = Math.max(x1, command.x1);
+            y1 = Math.max(y1, command.y1);
+        }
+        layerValid = true;
+        return layer;
+    }
+}
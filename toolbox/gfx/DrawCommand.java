@@ -0,0 +1,157 @@
+package toolbox.gfx;
+
+/**
+ * A recorded Screen draw call together with the state it depends on
+ * Commands are pooled and reused, so they are only valid until the recorder is flushed
+**/
+final class DrawCommand {
+
+    // draw call kinds
+    static final int SET_PIXEL = 0;
+    static final int CLEAR = 1;
+    static final int POINT = 2;
+    static final int LINE = 3;
+    static final int RECTANGLE = 4;
+    static final int ELLIPSE = 5;
+    static final int CIRCLE = 6;
+    static final int TRIANGLE = 7;
+    static final int IMAGE = 8;
+    static final int SPRITE = 9;
+    static final int TRANSFORMED_IMAGE = 10;
+
+    int kind;
+    final int[] args = new int[5];
+    final float[] vertices = new float[6];
+    // x, y, scaleX, scaleY, angle, pivotX and pivotY of a transformed image
+    final float[] transform = new float[7];
+    Image image;
+    SpriteAtlas atlas;
+
+    // screen state
+    int fillColor, outlineColor;
+    boolean fillEnabled, outlinesEnabled;
+    int brushShape, strokeWeight, blendMode, filter;
+    int tx, ty;
+    int leftPadding, rightPadding, topPadding, bottomPadding;
+
+    // pixels array columns and rows (both included) the draw call can touch, set by computeBounds()
+    int x0, y0, x1, y1;
+
+    DrawCommand set(int a0, int a1, int a2, int a3, int a4) {
+        args[0] = a0;
+        args[1] = a1;
+        args[2] = a2;
+        args[3] = a3;
+        args[4] = a4;
+        return this;
+    }
+
+    DrawCommand set(float x0, float y0, float x1, float y1, float x2, float y2) {
+        vertices[0] = x0;
+        vertices[1] = y0;
+        vertices[2] = x1;
+        vertices[3] = y1;
+        vertices[4] = x2;
+        vertices[5] = y2;
+        return this;
+    }
+
+    DrawCommand setTransform(float x, float y, float scaleX, float scaleY, float angle, float pivotX, float pivotY) {
+        transform[0] = x;
+        transform[1] = y;
+        transform[2] = scaleX;
+        transform[3] = scaleY;
+        transform[4] = angle;
+        transform[5] = pivotX;
+        transform[6] = pivotY;
+        return this;
+    }
+
+    /**
+     * Computes a conservative box of the pixels the draw call can touch on a screen of the given size
+     * Returns false if the box is empty
+    **/
+    boolean computeBounds(int width, int height) {
+        // thick outlines and strokes can reach strokeWeight pixels out of the shape
+        final int margin = Math.max(strokeWeight, 1) + 1;
+
+        // translated y-up coordinates
+        long minX, maxX, minY, maxY;
+        switch (kind) {
+            case SET_PIXEL:
+                // setPixel() does not take translation into account
+                minX = maxX = (long) args[0] - tx;
+                minY = maxY = (long) args[1] - ty;
+                break;
+            case CLEAR:
+                x0 = 0;
+                y0 = 0;
+                x1 = width - 1;
+                y1 = height - 1;
+                return true;
+            case POINT:
+                minX = (long) args[0] - args[2];
+                maxX = (long) args[0] + args[2];
+                minY = (long) args[1] - args[2];
+                maxY = (long) args[1] + args[2];
+                break;
+            case LINE:
+            case RECTANGLE:
+                minX = (long) Math.min(args[0], args[2]) - margin;
+                maxX = (long) Math.max(args[0], args[2]) + margin;
+                minY = (long) Math.min(args[1], args[3]) - margin;
+                maxY = (long) Math.max(args[1], args[3]) + margin;
+                break;
+            case ELLIPSE:
+                minX = (long) args[0] - args[2];
+                maxX = (long) args[0] + args[2];
+                minY = (long) args[1] - args[3];
+                maxY = (long) args[1] + args[3];
+                break;
+            case CIRCLE:
+                minX = (long) args[0] - args[2] - margin;
+                maxX = (long) args[0] + args[2] + margin;
+                minY = (long) args[1] - args[2] - margin;
+                maxY = (long) args[1] + args[2] + margin;
+                break;
+            case TRIANGLE:
+                minX = (long) Math.floor(Math.min(vertices[0], Math.min(vertices[2], vertices[4]))) - margin;
+                maxX = (long) Math.ceil(Math.max(vertices[0], Math.max(vertices[2], vertices[4]))) + margin;
+                minY = (long) Math.floor(Math.min(vertices[1], Math.min(vertices[3], vertices[5]))) - margin;
+                maxY = (long) Math.ceil(Math.max(vertices[1], Math.max(vertices[3], vertices[5]))) + margin;
+                break;
+            case IMAGE:
+                minX = args[0];
+                maxX = (long) args[0] + image.getWidth() - 1;
+                minY = args[1];
+                maxY = (long) args[1] + image.getHeight() - 1;
+                break;
+            case SPRITE:
+                minX = args[0];
+                maxX = (long) args[0] + atlas.getWidth(args[2]) - 1;
+                minY = args[1];
+                maxY = (long) args[1] + atlas.getHeight(args[2]) - 1;
+                break;
+            case TRANSFORMED_IMAGE: {
+                // whatever the angle, the image stays within its farthest corner distance from the pivot
+                final double dx = Math.max(Math.abs(transform[5]), Math.abs(args[2] - transform[5])) * Math.abs(transform[2]);
+                final double dy = Math.max(Math.abs(transform[6]), Math.abs(args[3] - transform[6])) * Math.abs(transform[3]);
+                final double radius = Math.hypot(dx, dy) + 1;
+                minX = (long) Math.floor(transform[0] - radius);
+                maxX = (long) Math.ceil(transform[0] + radius);
+                minY = (long) Math.floor(transform[1] - radius);
+                maxY = (long) Math.ceil(transform[1] + radius);
+                break;
+            }
+            default:
+                return false;
+        }
+
+        // translate and flip y to get pixels array columns and rows
+        x0 = (int) Math.max(0, minX + tx);
+        x1 = (int) Math.min(width - 1, maxX + tx);
+        y0 = (int) Math.max(0, height - 1 - (maxY + ty));
+        y1 = (int) Math.min(height - 1, height - 1 - (minY + ty));
+        return x0 <= x1 && y0 <= y1;
+    }
+}
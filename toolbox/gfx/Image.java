@@ -1,13 +1,54 @@
 package toolbox.gfx;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import toolbox.utils.FileHandler;
 
+/**
+ * ARGB pixels (format 0xAARRGGBB), loaded from any file ImageIO can read or mapped from a raw image file
+ *
+ * Raw image files (RAW_EXTENSION) hold a header (int 'TBIM', int width, int height, int flags) followed by the
+ * width * height ARGB ints of the pixels, row by row from the top one
+ * All values are in the native byte order of the machine that wrote the file (little endian on x86 and most ARM ones),
+ * which the magic int tells: mapped pixels are read as they are, files from a machine of the other order swap the bytes of every read
+ * The only flag is RAW_OPAQUE, set when every pixel is fully opaque
+ * map() does not decode nor copy them: the pixels stay in the file pages shared by every process through the OS page cache,
+ * and screen.image() reads them from there, until getPixels() or setPixel() copy them into an array for good
+**/
 public class Image {
 
+    public static final String RAW_EXTENSION = ".tbi";
+    public static final int RAW_OPAQUE = 1;
+
+    private static final int RAW_MAGIC = 0x5442494d; // "TBIM"
+    private static final int RAW_HEADER_BYTES = 16;
+
+    // images are read by bands of rows, on all cores from this many pixels
+    private static final int BAND_ROWS = 64;
+    private static final int PARALLEL_PIXELS = 1 << 18;
+
     private int width, height;
-    private int[] pixels;
+    // the pixels, null while they are only mapped (copied once by whichever tile thread needs them first)
+    private volatile int[] pixels;
+    // the pixels in a mapped raw image file (null for other images), only read while the array is null
+    private IntBuffer mapped;
+    private boolean mappedOpaque;
 
     public Image(int width, int height, int[] pixels) {
         if (width * height != pixels.length) {
@@ -20,24 +61,207 @@ public class Image {
     }
 
     public Image(String path) {
-        BufferedImage bufferedImage = FileHandler.loadImage(path);
+        this(load(path));
+    }
+
+    /** Creates an image with a copy of the pixels of the given one, converted to ARGB (format 0xAARRGGBB) **/
+    public Image(BufferedImage bufferedImage) {
         width = bufferedImage.getWidth();
         height = bufferedImage.getHeight();
-        pixels = new int[width * height];
-        for (int i = 0; i < pixels.length; i++) {
-            pixels[i] = bufferedImage.getRGB(i % width, i / width);
+        pixels = readPixels(bufferedImage);
+    }
+
+    private Image(int width, int height, IntBuffer mapped, boolean opaque) {
+        this.width = width;
+        this.height = height;
+        this.mapped = mapped;
+        mappedOpaque = opaque;
+    }
+
+    /** Loads the images at the given paths, decoding them in parallel **/
+    public static Image[] loadAll(String... paths) {
+        return Arrays.stream(paths).parallel().map(Image::new).toArray(Image[]::new);
+    }
+
+    private static BufferedImage load(String path) {
+        final BufferedImage bufferedImage = FileHandler.loadImage(path);
+        if (bufferedImage == null) {
+            throw new IllegalArgumentException("Could not load the image " + path);
         }
+        return bufferedImage;
+    }
+
+    // RAW IMAGES
+
+    /** Maps the raw image file at the given path (see RAW_EXTENSION), whose pixels are only read when drawn **/
+    public static Image map(String path) {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            // the mapping stays valid once the channel is closed
+            final ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (file.capacity() >= RAW_HEADER_BYTES && file.getInt(0) == Integer.reverseBytes(RAW_MAGIC)) {
+                file.order(file.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            }
+            if (file.capacity() < RAW_HEADER_BYTES || file.getInt(0) != RAW_MAGIC) {
+                throw new IllegalArgumentException("Not a raw image file: " + path);
+            }
+
+            final int width = file.getInt(4);
+            final int height = file.getInt(8);
+            final int flags = file.getInt(12);
+            if (width < 0 || height < 0 || file.capacity() != RAW_HEADER_BYTES + 4L * width * height) {
+                throw new IllegalArgumentException("Invalid raw image file: " + path);
+            }
+
+            // slices are big endian whatever the order of their buffer
+            final IntBuffer pixels = file.slice(RAW_HEADER_BYTES, file.capacity() - RAW_HEADER_BYTES).order(file.order()).asIntBuffer();
+            return new Image(width, height, pixels, (flags & RAW_OPAQUE) != 0);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not map the raw image " + path, e);
+        }
+    }
+
+    /** Writes the image to a raw image file (see RAW_EXTENSION) at the given path, in the native byte order **/
+    public void writeRaw(String path) {
+        boolean opaque = true;
+        for (int i = 0; i < width * height && opaque; i++) {
+            opaque = (getArgb(i) >>> 24) == 255;
+        }
+
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+            buffer.putInt(RAW_MAGIC).putInt(width).putInt(height).putInt(opaque ? RAW_OPAQUE : 0);
+
+            final int[] pixels = this.pixels;
+            final int count = width * height;
+            for (int i = 0; i < count; ) {
+                final int chunk = Math.min(count - i, buffer.remaining() / 4);
+                if (pixels != null) {
+                    buffer.asIntBuffer().put(pixels, i, chunk);
+                } else {
+                    buffer.asIntBuffer().put(0, mapped, i, chunk);
+                }
+                buffer.position(buffer.position() + 4 * chunk);
+                i += chunk;
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            if (count == 0) {
+                buffer.flip();
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not write the raw image " + path, e);
+        }
+    }
+
+    /** Decodes the image file at the given path (any format ImageIO can read) and writes it to a raw image file at the other one **/
+    public static void convertToRaw(String imagePath, String rawPath) {
+        new Image(imagePath).writeRaw(rawPath);
+    }
+
+    // DECODING
+
+    /**
+     * Returns the ARGB pixels of the given image, the same as reading every pixel with getRGB(x, y)
+     * Int ARGB and RGB rasters and 8 bits per channel sRGB rasters (what ImageIO decodes most PNG and JPEG files to)
+     * are read straight from their data arrays, any other image goes through getRGB() a band of rows at a time
+    **/
+    private static int[] readPixels(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] pixels = new int[width * height];
+
+        final WritableRaster raster = image.getRaster();
+        final DataBuffer buffer = raster.getDataBuffer();
+        // sub images share the data of a bigger raster at an offset, they are left to getRGB()
+        final boolean direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+            && buffer.getNumBanks() == 1 && buffer.getOffset() == 0;
+
+        final RowReader reader;
+        if (direct && (image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB)) {
+            final int[] data = ((DataBufferInt) buffer).getData();
+            final int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            final int alpha = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+            reader = (y0, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    System.arraycopy(data, y * stride, pixels, y * width, width);
+                    if (alpha != 0) {
+                        for (int i = y * width; i < (y + 1) * width; i++) {
+                            pixels[i] |= alpha;
+                        }
+                    }
+                }
+            };
+        } else if (direct && isInterleavedSrgb(image)) {
+            final byte[] data = ((DataBufferByte) buffer).getData();
+            final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+            final int[] offsets = model.getBandOffsets();
+            final int pixelStride = model.getPixelStride();
+            final int stride = model.getScanlineStride();
+            final int r = offsets[0], g = offsets[1], b = offsets[2];
+            final boolean opaque = offsets.length == 3;
+            final int a = opaque ? 0 : offsets[3];
+            reader = (y0, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    int index = y * stride;
+                    for (int i = y * width; i < (y + 1) * width; i++) {
+                        final int alpha = opaque ? 0xff : data[index + a] & 0xff;
+                        pixels[i] = (alpha << 24) | ((data[index + r] & 0xff) << 16) | ((data[index + g] & 0xff) << 8) | (data[index + b] & 0xff);
+                        index += pixelStride;
+                    }
+                }
+            };
+        } else {
+            reader = (y0, y1) -> image.getRGB(0, y0, width, y1 - y0, pixels, y0 * width, width);
+        }
+
+        final int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        IntStream stream = IntStream.range(0, bands);
+        if ((long) width * height >= PARALLEL_PIXELS) {
+            stream = stream.parallel();
+        }
+        stream.forEach(band -> reader.read(band * BAND_ROWS, Math.min(height, (band + 1) * BAND_ROWS)));
+        return pixels;
+    }
+
+    /** Returns true if the image stores 8 bits sRGB (and alpha) channels, not premultiplied, interleaved in a byte array **/
+    private static boolean isInterleavedSrgb(BufferedImage image) {
+        if (!(image.getColorModel() instanceof ComponentColorModel model)) return false;
+        if (!(image.getRaster().getSampleModel() instanceof PixelInterleavedSampleModel)) return false;
+        if (image.getRaster().getDataBuffer().getDataType() != DataBuffer.TYPE_BYTE) return false;
+        if (!model.getColorSpace().isCS_sRGB() || model.isAlphaPremultiplied()) return false;
+
+        final int components = model.getNumComponents();
+        if (model.getNumColorComponents() != 3 || (components != 3 && components != 4)) return false;
+        for (int bits : model.getComponentSize()) {
+            if (bits != 8) return false;
+        }
+        return image.getRaster().getNumBands() == components;
+    }
+
+    /** Reads the pixels of the rows in [y0, y1) **/
+    private interface RowReader {
+        void read(int y0, int y1);
     }
 
     // SETTERS
 
     /** Sets the pixel at the given coordinates to the given color (does not take translation into account) **/
     public void setPixel(int x, int y, Color color) {
+        setPixel(x, y, color.toInt());
+    }
+
+    /** Sets the pixel at the given coordinates to the given ARGB color (format 0xAARRGGBB) **/
+    public void setPixel(int x, int y, int color) {
         // flip y to make the coordinate system a y-up one
         y = height - 1 - y;
 
         if (isOutside(x, y)) return;
-        pixels[x + y * width] = color.toInt();
+        getPixels()[x + y * width] = color;
     }
 
     /** Returns the color of the pixel at the given coordinates (does not take translation into account) **/
@@ -46,7 +270,19 @@ public class Image {
         y = height - 1 - y;
 
         if (isOutside(x, y)) return null;
-        return Color.fromInt(pixels[x + y * width]);
+        return Color.fromInt(getArgb(x + y * width));
+    }
+
+    /**
+     * Returns the ARGB color (format 0xAARRGGBB) of the pixel at the given coordinates
+     * Unlike getPixel() it does not allocate anything, and returns 0 (fully transparent) for pixels outside the image
+    **/
+    public int getPixelArgb(int x, int y) {
+        // flip y to make the coordinate system a y-up one
+        y = height - 1 - y;
+
+        if (isOutside(x, y)) return 0;
+        return getArgb(x + y * width);
     }
 
 
@@ -60,8 +296,39 @@ public class Image {
         return height;
     }
 
+    /** Returns the pixels array (row 0 is the top one), copying the pixels of a mapped image into it first **/
     public int[] getPixels() {
-        return pixels;
+        final int[] array = pixels;
+        if (array != null) return array;
+
+        synchronized (this) {
+            if (pixels == null) {
+                final int[] copy = new int[width * height];
+                mapped.get(0, copy);
+                pixels = copy;
+            }
+            return pixels;
+        }
+    }
+
+    /** Returns true while the pixels are only in a mapped raw image file (see map()) **/
+    public boolean isMapped() {
+        return pixels == null;
+    }
+
+    /** Returns the mapped pixels (absolute reads only, they are shared by every thread), or null if they are in the pixels array **/
+    IntBuffer getMappedPixels() {
+        return pixels == null ? mapped : null;
+    }
+
+    /** Returns true while the image is only mapped from a raw image file flagged as fully opaque **/
+    boolean isMappedOpaque() {
+        return pixels == null && mappedOpaque;
+    }
+
+    private int getArgb(int index) {
+        final int[] array = pixels;
+        return array != null ? array[index] : mapped.get(index);
     }
 
     // UTILITY & CHECKS
@@ -0,0 +1,104 @@
+package toolbox.gfx;
+
+/**
+ * A screen composited by a LayerStack, at an offset, with an opacity, a visibility and a blend mode
+ * Draw into getScreen() like into any screen: the pixels it changes (its dirty rectangles) are the only ones
+ * the stack composites again, and changing the offset, opacity, visibility or blend mode recomposites the whole layer
+**/
+public class Layer {
+
+    private final Screen screen;
+
+    // position of the bottom left corner in the target screen (y-up pixels, the target translation is ignored)
+    private int x = 0, y = 0;
+    private int opacity = 255;
+    private boolean visible = true;
+    private int blendMode = Screen.BLEND_SOURCE_OVER;
+
+    // true when a property changed since the layer was last composited
+    boolean changed = true;
+    // the target pixels array area (both corners included) the layer covered when it was last composited, if it was visible
+    boolean composited = false;
+    int compositedX0, compositedY0, compositedX1, compositedY1;
+
+    /** Creates a fully transparent layer of the given size **/
+    public Layer(int width, int height) {
+        screen = new Screen(width, height);
+    }
+
+    /** Creates a layer drawing into the given screen **/
+    public Layer(Screen screen) {
+        this.screen = screen;
+    }
+
+    /** Marks the whole layer as changed, call it after writing to the getScreen().getPixels() array directly **/
+    public void invalidate() {
+        screen.invalidate();
+    }
+
+    // SETTERS
+
+    /** Sets the position of the layer bottom left corner in the target screen **/
+    public void setOffset(int x, int y) {
+        if (x == this.x && y == this.y) return;
+        this.x = x;
+        this.y = y;
+        changed = true;
+    }
+
+    /** Sets the opacity the layer pixels alpha is multiplied by, ranged [0, 255] **/
+    public void setOpacity(int opacity) {
+        opacity = Math.clamp(opacity, 0, 255);
+        if (opacity == this.opacity) return;
+        this.opacity = opacity;
+        changed = true;
+    }
+
+    public void setVisible(boolean visible) {
+        if (visible == this.visible) return;
+        this.visible = visible;
+        changed = true;
+    }
+
+    /** Sets how the layer is blended over the layers below it (one of the Screen.BLEND_* modes) **/
+    public void setBlendMode(int mode) {
+        if (mode < Screen.BLEND_REPLACE || mode > Screen.BLEND_MULTIPLY) {
+            throw new IllegalArgumentException("Unknown blend mode: " + mode);
+        }
+        if (mode == blendMode) return;
+        blendMode = mode;
+        changed = true;
+    }
+
+    // GETTERS
+
+    /** Returns the screen to draw the layer into **/
+    public Screen getScreen() {
+        return screen;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getOpacity() {
+        return opacity;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public int getBlendMode() {
+        return blendMode;
+    }
+
+    /** Returns true if the layer will be composited again by the next LayerStack.composite() call **/
+    public boolean isDirty() {
+        return changed || !screen.getDirtyRects().isEmpty();
+    }
+}
@@ -0,0 +1,173 @@
+package toolbox.gfx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Composites layers, from the bottom one to the top one, into a target screen
+ * Only the target pixels covered by what changed in the layers since the last composite() call are composited again,
+ * row by row: the area is cleared to transparent, then every visible layer row span is blended over it
+ * so layers updated at different rates (a background, the world, effects, a HUD) do not repaint each other
+ *
+ * The stack owns the pixels its layers cover: drawing there directly into the target is overwritten by the next change,
+ * and clearing the target composites every layer again (disable the sketch autoClear to only pay for what changed)
+**/
+public class LayerStack {
+
+    private final ArrayList<Layer> layers = new ArrayList<Layer>();
+
+    // target pixels array area to composite again
+    private final DirtyRects region = new DirtyRects();
+
+    // the target of the last composite() call and its clear count at that time
+    private Screen target;
+    private int targetClears;
+    private boolean changed = true;
+
+    /** Creates a transparent layer of the given size on top of the stack and returns it **/
+    public Layer add(int width, int height) {
+        final Layer layer = new Layer(width, height);
+        add(layer);
+        return layer;
+    }
+
+    /** Puts the given layer on top of the stack **/
+    public void add(Layer layer) {
+        add(layers.size(), layer);
+    }
+
+    /** Inserts the given layer at the given index (0 is the bottom layer) **/
+    public void add(int index, Layer layer) {
+        if (layers.contains(layer)) {
+            throw new IllegalArgumentException("The layer is already in the stack");
+        }
+        layers.add(index, layer);
+        layer.changed = true;
+    }
+
+    /** Removes the given layer from the stack, its area is composited again by the next composite() call **/
+    public void remove(Layer layer) {
+        if (!layers.remove(layer)) return;
+        if (layer.composited) {
+            region.add(layer.compositedX0, layer.compositedY0, layer.compositedX1, layer.compositedY1);
+        }
+        layer.composited = false;
+    }
+
+    /** Returns the layer at the given index (0 is the bottom layer) **/
+    public Layer get(int index) {
+        return layers.get(index);
+    }
+
+    public int size() {
+        return layers.size();
+    }
+
+    /** Composites every layer again by the next composite() call **/
+    public void invalidate() {
+        changed = true;
+    }
+
+    /**
+     * Composites what changed in the layers into the given screen (also marking it in the screen dirty rectangles)
+     * Returns false if nothing changed, in which case the screen is left untouched
+     * The pixels are written right away, so the screen cannot be recording a display list (as in a threaded sketch)
+    **/
+    public boolean composite(Screen screen) {
+        if (screen.isRecording()) {
+            throw new IllegalStateException("Cannot composite layers into a screen recording a display list");
+        }
+        final boolean full = changed || screen != target || screen.clears != targetClears;
+        if (full) {
+            region.clear();
+        }
+
+        final int width = screen.getWidth();
+        final int height = screen.getHeight();
+        for (Layer layer : layers) {
+            final Screen layerScreen = layer.getScreen();
+            final DirtyRects layerRects = layerScreen.getDirtyRects();
+            final boolean layerChanged = layer.changed || full;
+
+            if (layerChanged && layer.composited) {
+                region.add(layer.compositedX0, layer.compositedY0, layer.compositedX1, layer.compositedY1);
+            }
+
+            // the layer in target pixels array coordinates
+            final int x0 = layer.getX();
+            final int y0 = height - layer.getY() - layerScreen.getHeight();
+            layer.composited = layer.isVisible() && layer.getOpacity() > 0
+                && x0 < width && y0 < height && x0 + layerScreen.getWidth() > 0 && y0 + layerScreen.getHeight() > 0;
+            layer.compositedX0 = Math.max(0, x0);
+            layer.compositedY0 = Math.max(0, y0);
+            layer.compositedX1 = Math.min(width, x0 + layerScreen.getWidth()) - 1;
+            layer.compositedY1 = Math.min(height, y0 + layerScreen.getHeight()) - 1;
+
+            if (layer.composited) {
+                if (layerChanged) {
+                    region.add(layer.compositedX0, layer.compositedY0, layer.compositedX1, layer.compositedY1);
+                } else {
+                    for (int i = 0; i < layerRects.size(); i++) {
+                        region.add(
+                            Math.max(0, x0 + layerRects.getX0(i)), Math.max(0, y0 + layerRects.getY0(i)),
+                            Math.min(width - 1, x0 + layerRects.getX1(i)), Math.min(height - 1, y0 + layerRects.getY1(i))
+                        );
+                    }
+                }
+            }
+
+            layer.changed = false;
+            layerScreen.clearDirtyRects();
+        }
+
+        target = screen;
+        changed = false;
+        if (region.isEmpty()) {
+            targetClears = screen.clears;
+            return false;
+        }
+
+        // the target may have draw calls waiting for parallel rendering
+        final int[] pixels = screen.getPixels();
+        for (int i = 0; i < region.size(); i++) {
+            compositeArea(screen, pixels, width, height, region.getX0(i), region.getY0(i), region.getX1(i), region.getY1(i));
+            screen.markDirty(region.getX0(i), region.getY0(i), region.getX1(i), region.getY1(i));
+        }
+        region.clear();
+        targetClears = screen.clears;
+        return true;
+    }
+
+    /** Composites every layer into the given target pixels array area (both corners included) **/
+    private void compositeArea(Screen screen, int[] pixels, int width, int height, int ax0, int ay0, int ax1, int ay1) {
+        final int transparent = Blend.toFormat(0, screen.getFormat());
+        for (int row = ay0; row <= ay1; row++) {
+            Arrays.fill(pixels, row * width + ax0, row * width + ax1 + 1, transparent);
+        }
+
+        for (Layer layer : layers) {
+            if (!layer.composited) continue;
+
+            final int x0 = Math.max(ax0, layer.compositedX0);
+            final int y0 = Math.max(ay0, layer.compositedY0);
+            final int x1 = Math.min(ax1, layer.compositedX1);
+            final int y1 = Math.min(ay1, layer.compositedY1);
+            if (x0 > x1 || y0 > y1) continue;
+
+            final Screen layerScreen = layer.getScreen();
+            final int[] layerPixels = layerScreen.getPixels();
+            final int layerWidth = layerScreen.getWidth();
+            // target pixels array position of the layer pixels array origin
+            final int originX = layer.getX();
+            final int originY = height - layer.getY() - layerScreen.getHeight();
+
+            for (int row = y0; row <= y1; row++) {
+                Blend.blit(
+                    layerPixels, (row - originY) * layerWidth + x0 - originX, layerScreen.getFormat(),
+                    pixels, row * width + x0, screen.getFormat(),
+                    x1 - x0 + 1, layer.getBlendMode(), layer.getOpacity()
+                );
+            }
+        }
+    }
+}
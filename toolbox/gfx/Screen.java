@@ -1,7 +1,9 @@
 package toolbox.gfx;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
 import toolbox.math.Vector2;
-import toolbox.math.Vector3;
 
 public class Screen {
 
@@ -9,15 +11,37 @@ public class Screen {
     private final Vector2 X_AXIS = new Vector2(15, 0); // points left
     private final Vector2 Y_AXIS = new Vector2(0, 15); // points up
 
-    private static final double HALF_PI = Math.PI / 2;
-    private static final double PI_OVER_FOUR = Math.PI / 4;
-    private static final double THREE_PI_OVER_FOUR = 3 * Math.PI / 4;
-    
     public static final int BRUSH_CIRCLE = 0;
     public static final int BRUSH_SQUARE = 1;
+
+    // blend modes (how a drawn color is combined with the pixel underneath)
+    public static final int BLEND_REPLACE = 0; // overwrites the pixel, fully transparent colors are skipped
+    public static final int BLEND_SOURCE_OVER = 1; // alpha blends the color over the pixel
+    public static final int BLEND_ADD = 2; // adds the color, scaled by its alpha, to the pixel
+    public static final int BLEND_MULTIPLY = 3; // multiplies the pixel by the color, scaled by its alpha (the color shows as is where the pixel is transparent)
+
+    // pixel formats (how the pixels array stores colors, drawing functions always take straight ARGB colors)
+    public static final int FORMAT_ARGB = 0; // straight ARGB (format 0xAARRGGBB), shown through a TYPE_INT_ARGB image
+    public static final int FORMAT_RGB = 1; // opaque ARGB whose alpha is always 255, shown through a TYPE_INT_RGB image
+    public static final int FORMAT_ARGB_PRE = 2; // ARGB with the color channels multiplied by the alpha, shown through a TYPE_INT_ARGB_PRE image
+
+    // filters (how images drawn scaled or rotated are sampled)
+    public static final int FILTER_NEAREST = 0; // the image pixel under the center of the screen pixel
+    public static final int FILTER_BILINEAR = 1; // the 4 image pixels around it, weighted by their distance
+
+    // image flips, as flags (the image is mirrored within its own bounds, its position and pivot do not change)
+    public static final int FLIP_HORIZONTAL = 1;
+    public static final int FLIP_VERTICAL = 2;
+
+    // transformed images are sampled with 16.16 fixed point image coordinates
+    private static final int FIXED_ONE = 1 << 16;
+
+    // triangle vertices are snapped to 1 / SUBPIXEL_STEPS of a pixel
+    private static final int SUBPIXEL_STEPS = 16;
     
     private int width, height;
-    private int[] pixels;
+    private final int[] pixels;
+    private final int format;
 
     // these are the exact coordinate of the pixel on the corresponding side
     // (e.g.: left is the x coordinate of the leftmost pixels in the canvas)
@@ -27,55 +51,219 @@ public class Screen {
     private boolean outlinesEnabled = true;
     private boolean fillEnabled = false;
 
-    private Color backgroundColor = Color.WHITE;
-    private Color outlineColor = Color.BLACK;
-    private Color fillColor = Color.RED;
+    private int backgroundColor = Color.WHITE.toInt();
+    private int outlineColor = Color.BLACK.toInt();
+    private int fillColor = Color.RED.toInt();
 
     private int brushShape = BRUSH_CIRCLE;
     private int strokeWeight = 1;
+    private int blendMode = BLEND_REPLACE;
+    private int filter = FILTER_NEAREST;
+
+    // brush stamps, cached per shape and radius: for every row distance from the center
+    // they hold the half width of the stamp on that row (-1 if the row is empty)
+    private final int[][][] brushStamps = new int[3][][];
+
+    // per row span extents used to merge thick strokes (indexed from the clip top, reset after every use)
+    private int[] sweepStart, sweepEnd;
+    // the samples of a transformed image row, blended into the pixels in a single run
+    private int[] samples = new int[0];
     
     // translation
     private int tx = 0, ty = 0;
 
+    // the only pixels that can be written, as pixels array columns and rows (the whole screen unless this is a tile view)
+    private int clipX0, clipX1, clipY0, clipY1;
+    // the same area in translated y-up coordinates (updated by translate())
+    private int clipLeft, clipRight, clipTop, clipBottom;
+
+    // pixels changed since the last clearDirtyRects() call, and pixels drawn since the last clear (both null for tile views)
+    private DirtyRects dirty, drawn;
+    // while clearColorValid is true, every pixel outside of the drawn rectangles has the color of the last clear
+    private int clearColor;
+    private boolean clearColorValid = false;
+    // counts the clear() and invalidate() calls, after which a LayerStack composites its layers again
+    int clears = 0;
+
+    // states saved by push(), the first stateDepth ones are in use
+    private DrawCommand[] stateStack = new DrawCommand[4];
+    private int stateDepth = 0;
+
+    // draws recorded draw calls in parallel when parallel rendering is enabled (null otherwise)
+    private TileRenderer tiles;
+    // the display list being recorded (null if none)
+    private DisplayList recording;
+    // where draw calls are recorded instead of being drawn: the display list being recorded,
+    // otherwise the tile renderer commands, otherwise null (draw calls are drawn right away)
+    private CommandBuffer recorder;
+
     /** Remember that the coordinate system is a y-up system **/
     public Screen(int width, int height) {
+        this(width, height, FORMAT_ARGB);
+    }
+
+    /** Creates a screen storing its pixels in the given format (one of the FORMAT_* constants) **/
+    public Screen(int width, int height, int format) {
+        this(width, height, new int[width * height], format);
+    }
+
+    /**
+     * Creates a screen drawing directly into the given pixels array (format 0xAARRGGBB, row 0 is the top one),
+     * e.g. the DataBufferInt array of a TYPE_INT_ARGB BufferedImage, which can then be shown without copying the pixels
+     * The array is cleared, and whoever shows it must not read it while the screen is drawing
+    **/
+    public Screen(int width, int height, int[] pixels) {
+        this(width, height, pixels, FORMAT_ARGB);
+    }
+
+    /** Same as Screen(width, height, pixels) with the pixels stored in the given format (e.g. FORMAT_RGB for a TYPE_INT_RGB image) **/
+    public Screen(int width, int height, int[] pixels, int format) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("Pixels array length does not match the screen size");
+        }
+        if (format < FORMAT_ARGB || format > FORMAT_ARGB_PRE) {
+            throw new IllegalArgumentException("Unknown pixel format: " + format);
+        }
         this.width = width;
         this.height = height;
-        pixels = new int[width * height];
+        this.pixels = pixels;
+        this.format = format;
+        clip(0, 0, width - 1, height - 1);
+        dirty = new DirtyRects();
+        drawn = new DirtyRects();
         clear(Color.TRANSPARENT);
 
         resetTranslation();
         resetPadding();
     }
 
+    /** Creates a view of the given screen sharing its pixels, which can only draw within the given pixels array columns and rows (both included) **/
+    Screen(Screen screen, int x0, int y0, int x1, int y1) {
+        width = screen.width;
+        height = screen.height;
+        pixels = screen.pixels;
+        format = screen.format;
+        clip(x0, y0, x1, y1);
+
+        resetTranslation();
+        resetPadding();
+    }
+
+    private void clip(int x0, int y0, int x1, int y1) {
+        clipX0 = x0;
+        clipY0 = y0;
+        clipX1 = x1;
+        clipY1 = y1;
+
+        sweepStart = new int[y1 - y0 + 1];
+        sweepEnd = new int[y1 - y0 + 1];
+        Arrays.fill(sweepStart, Integer.MAX_VALUE);
+        Arrays.fill(sweepEnd, Integer.MIN_VALUE);
+    }
+
     // BASIC FUNCTIONS
 
     /** Sets the pixel at the given coordinates to the given color (does not take translation into account) **/
     public void setPixel(int x, int y, Color color) {
-        if (color.getAlpha() == 0) return;
+        if (color == null) return;
+        setPixel(x, y, color.toInt());
+    }
+
+    /** Sets the pixel at the given coordinates to the given ARGB color (format 0xAARRGGBB, does not take translation into account) **/
+    public void setPixel(int x, int y, int color) {
+        if ((color >>> 24) == 0) return;
+        if (recorder != null) {
+            record(DrawCommand.SET_PIXEL).set(x, y, color, 0, 0);
+            return;
+        }
         // flip y to make the coordinate system a y-up one
         y = height - 1 - y;
 
-        if (isOutside(x, y)) return;
-        pixels[x + y * width] = color.toInt();
+        if (x < clipX0 || x > clipX1 || y < clipY0 || y > clipY1) return;
+        markDirty(x, y, x, y);
+        blendPixel(x + y * width, color);
+    }
+
+    /** Draws the given straight ARGB color on the pixel at the given pixels array index with the blend mode **/
+    private void blendPixel(int index, int color) {
+        pixels[index] = blendMode == BLEND_REPLACE
+            ? Blend.toFormat(color, format)
+            : Blend.blend(pixels[index], Blend.source(color, FORMAT_ARGB, format), blendMode, format);
     }
 
     /** Returns the color of the pixel at the given coordinates (does not take translation into account) **/
     public Color getPixel(int x, int y) {
+        flush();
         // flip y to make the coordinate system a y-up one
         y = height - 1 - y;
 
         if (isOutside(x, y)) return null;
-        return Color.fromInt(pixels[x + y * width]);
+        return Color.fromInt(Blend.toArgb(pixels[x + y * width], format));
+    }
+
+    /**
+     * Returns the ARGB color (format 0xAARRGGBB) of the pixel at the given coordinates (does not take translation into account)
+     * Unlike getPixel() it does not allocate anything, and returns 0 (fully transparent) for pixels outside the screen
+    **/
+    public int getPixelArgb(int x, int y) {
+        flush();
+        // flip y to make the coordinate system a y-up one
+        y = height - 1 - y;
+
+        if (isOutside(x, y)) return 0;
+        return Blend.toArgb(pixels[x + y * width], format);
+    }
+
+    /** Converts the given pixels of the given format (one of the FORMAT_* constants) to straight ARGB colors, in place **/
+    public static void toArgb(int[] pixels, int format) {
+        if (format != FORMAT_ARGB_PRE) return;
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = Blend.toArgb(pixels[i], format);
+        }
     }
 
     // GRAPHICS FUNCTIONS
 
     /** Clears the screen to the given color **/
     public void clear(Color color) {
-        for (int i = 0; i < pixels.length; i++) {
-            pixels[i] = color.toInt();
+        clear(color.toInt());
+    }
+
+    /** Clears the screen to the given ARGB color (format 0xAARRGGBB) **/
+    public void clear(int color) {
+        if (recording != null) {
+            record(DrawCommand.CLEAR).set(color, 0, 0, 0, 0);
+            return;
+        }
+        // clearing is cheap enough to be done right away, after whatever was recorded for parallel rendering
+        flush();
+        final int pixel = Blend.toFormat(color, format);
+
+        // tile views
+        if (dirty == null) {
+            for (int row = clipY0; row <= clipY1; row++) {
+                Arrays.fill(pixels, row * width + clipX0, row * width + clipX1 + 1, pixel);
+            }
+            return;
+        }
+
+        if (clearColorValid && color == clearColor) {
+            // only the pixels drawn since the last clear can have a different color
+            for (int i = 0; i < drawn.size(); i++) {
+                for (int row = drawn.getY0(i); row <= drawn.getY1(i); row++) {
+                    Arrays.fill(pixels, row * width + drawn.getX0(i), row * width + drawn.getX1(i) + 1, pixel);
+                }
+            }
+            dirty.addAll(drawn);
+        } else {
+            Arrays.fill(pixels, pixel);
+            dirty.add(0, 0, width - 1, height - 1);
         }
+
+        drawn.clear();
+        clears++;
+        clearColor = color;
+        clearColorValid = true;
     }
 
     /** Clears the screen to the set background color **/
@@ -87,12 +275,22 @@ public class Screen {
 
     /** Sets the background color **/
     public void background(Color color) {
+        background(color.toInt());
+    }
+
+    /** Sets the background ARGB color (format 0xAARRGGBB) **/
+    public void background(int color) {
         backgroundColor = color;
     }
 
     /** Sets the shape outline color (automatically enables outlines) **/
     public void outlines(Color color) {
         if (color == null) return;
+        outlines(color.toInt());
+    }
+
+    /** Sets the shape outline ARGB color (format 0xAARRGGBB, automatically enables outlines) **/
+    public void outlines(int color) {
         outlineColor = color;
         outlinesEnabled = true;
     }
@@ -100,6 +298,11 @@ public class Screen {
     /** Sets the shape fill color (automatically enables shape filling) **/
     public void fill(Color color) {
         if (color == null) return;
+        fill(color.toInt());
+    }
+
+    /** Sets the shape fill ARGB color (format 0xAARRGGBB, automatically enables shape filling) **/
+    public void fill(int color) {
         fillColor = color;
         fillEnabled = true;
     }
@@ -109,6 +312,19 @@ public class Screen {
         brushShape = shape;
     }
     
+    /**
+     * Sets the blend mode used by every drawing function (BLEND_REPLACE by default)
+     * Clearing the screen always replaces the pixels
+    **/
+    public void blend(int mode) {
+        blendMode = mode;
+    }
+
+    /** Sets how images drawn scaled or rotated are sampled (FILTER_NEAREST by default) **/
+    public void filter(int filter) {
+        this.filter = filter;
+    }
+
     /** Sets the stroke width for shape outlines **/
     public void stroke(int width) {
         strokeWeight = width;
@@ -124,6 +340,163 @@ public class Screen {
         fillEnabled = false;
     }
 
+    /** Saves the current state (colors, stroke, brush, blend mode, filter, translation and padding) so that pop() can set it back **/
+    public void push() {
+        if (stateDepth == stateStack.length) {
+            stateStack = Arrays.copyOf(stateStack, stateDepth * 2);
+        }
+        if (stateStack[stateDepth] == null) {
+            stateStack[stateDepth] = new DrawCommand();
+        }
+        saveState(stateStack[stateDepth++]);
+    }
+
+    /**
+     * Sets the background color, parallel rendering and the state push() saves (colors, stroke, brush, blend mode, filter, translation and padding)
+     * to the ones of the given screen
+    **/
+    public void setState(Screen screen) {
+        final DrawCommand state = new DrawCommand();
+        screen.saveState(state);
+        restoreState(state);
+        backgroundColor = screen.backgroundColor;
+        parallel(screen.isParallel());
+    }
+
+    /** Sets the state back to the one saved by the matching push() call **/
+    public void pop() {
+        if (stateDepth == 0) {
+            throw new IllegalStateException("No state saved by push() to pop");
+        }
+        restoreState(stateStack[--stateDepth]);
+    }
+
+    /**
+     * Toggles parallel rendering, which is false by default
+     * When enabled, draw calls are recorded together with the state they depend on and only drawn on flush()
+     * (or as soon as the pixels are read), split into tiles that are drawn in parallel on all cores
+     * The result is exactly the same as drawing on a single thread
+    **/
+    public void parallel(boolean toggle) {
+        if (toggle == (tiles != null)) return;
+
+        if (toggle) {
+            tiles = new TileRenderer(this);
+        } else {
+            flush();
+            tiles = null;
+        }
+        if (recording == null) {
+            recorder = tiles != null ? tiles.commands : null;
+        }
+    }
+
+    /** Returns true if parallel rendering is enabled **/
+    public boolean isParallel() {
+        return tiles != null;
+    }
+
+    /** Draws every draw call recorded since the last flush (does nothing if parallel rendering is disabled) **/
+    public void flush() {
+        if (tiles != null) {
+            tiles.flush();
+        }
+    }
+
+    // DIRTY RECTANGLES
+
+    /**
+     * Returns the rectangles covering every pixel changed since the last clearDirtyRects() call
+     * (in pixels array columns and rows, row 0 is the top one)
+    **/
+    public DirtyRects getDirtyRects() {
+        flush();
+        return dirty;
+    }
+
+    /** Forgets the changed pixels (called by the sketch once a frame has been shown) **/
+    public void clearDirtyRects() {
+        dirty.clear();
+    }
+
+    /** Marks the whole screen as changed, call it after writing to the getPixels() array directly **/
+    public void invalidate() {
+        dirty.add(0, 0, width - 1, height - 1);
+        clearColorValid = false;
+        clears++;
+    }
+
+    /** Marks the given pixels array area (both corners included) as changed **/
+    void markDirty(int x0, int y0, int x1, int y1) {
+        if (dirty == null) return;
+        dirty.add(x0, y0, x1, y1);
+        drawn.add(x0, y0, x1, y1);
+    }
+
+    // DISPLAY LISTS
+
+    /**
+     * Starts recording the following draw calls into the given display list (replacing its content) instead of drawing them
+     * Recording lasts until endRecording() is called, draw the list with draw(DisplayList list)
+    **/
+    public void beginRecording(DisplayList list) {
+        if (recording != null) {
+            throw new IllegalStateException("Already recording a display list");
+        }
+
+        list.clear();
+        recording = list;
+        recorder = list.commands;
+    }
+
+    /** Stops recording the display list passed to beginRecording() **/
+    public void endRecording() {
+        if (recording == null) {
+            throw new IllegalStateException("Not recording a display list");
+        }
+
+        recording = null;
+        recorder = tiles != null ? tiles.commands : null;
+    }
+
+    /** Returns true while a display list is being recorded **/
+    public boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Draws the given display list, each draw call with the state it was recorded with
+     * (the current state, translation included, is left untouched)
+     * Lists only made of BLEND_REPLACE draw calls (and no clear) that are drawn more than once are drawn into a cached layer
+     * which is then just copied, until the list is recorded again or invalidated
+    **/
+    public void draw(DisplayList list) {
+        if (list == recording) {
+            throw new IllegalStateException("Cannot draw a display list while recording it");
+        }
+        if (list.isEmpty()) return;
+
+        // cached layers can only be copied onto the whole screen, right away
+        // (a list drawn only once after being recorded, like a whole frame, is cheaper to replay)
+        if (recording == null && list.draws++ > 0 && list.isCacheable() && clipX0 == 0 && clipY0 == 0 && clipX1 == width - 1 && clipY1 == height - 1) {
+            flush();
+            final Screen layer = list.layer(width, height);
+            final int[] source = layer.pixels;
+            markDirty(list.x0, list.y0, list.x1, list.y1);
+            for (int row = list.y0; row <= list.y1; row++) {
+                Blend.blit(source, row * width + list.x0, layer.format, pixels, row * width + list.x0, format, list.x1 - list.x0 + 1, BLEND_REPLACE);
+            }
+            return;
+        }
+
+        final DrawCommand state = list.state;
+        saveState(state);
+        for (int i = 0; i < list.commands.size(); i++) {
+            replay(list.commands.get(i));
+        }
+        restoreState(state);
+    }
+
     /** Sets the translation vector to (tx, ty) (does not affect setPixel()) **/
     public void translate(int tx, int ty) {
         this.tx = tx;
@@ -133,6 +506,11 @@ public class Screen {
         right = left + width - 1;
         top = -ty;
         bottom = top + height - 1;
+
+        clipLeft = clipX0 - tx;
+        clipRight = clipX1 - tx;
+        clipTop = height - 1 - clipY1 - ty;
+        clipBottom = height - 1 - clipY0 - ty;
     }
 
     /** Sets the translation vector back to (getCenterX(), getCenterY()) **/
@@ -196,8 +574,14 @@ public class Screen {
         return height;
     }
 
-    /** Returns the screen pixels array **/
+    /** Returns the pixel format, one of the FORMAT_* constants **/
+    public int getFormat() {
+        return format;
+    }
+
+    /** Returns the screen pixels array, in the screen pixel format (drawing any pending parallel draw call first) **/
     public int[] getPixels() {
+        flush();
         return pixels;
     }
 
@@ -257,171 +641,239 @@ public class Screen {
 
     /** Draws a point at the given coordinates **/
     public void point(int x, int y, int radius, Color color) {
-        if (radius <= 0 || isBoundingBoxOutside(x, y, radius, radius) || color == null) return;
+        if (color == null) return;
+        point(x, y, radius, color.toInt());
+    }
 
-        // rotate
-        // TODO
-        // translate
-        x += tx;
-        y += ty;
-   
-        for (int yp = y - radius; yp < y + radius + 1; yp++) {
-            for (int xp = x - radius; xp < x + radius + 1; xp++) {
-                boolean drawCondition = true;
-                if (brushShape == BRUSH_CIRCLE) {
-                    final int x2 = (xp - x) * (xp - x);
-                    final int y2 = (yp - y) * (yp - y);
-                    final int p2 = x2 + y2;
-                    final int r2 = radius * radius;
-                    drawCondition = p2 < r2;
-                } else if (brushShape == BRUSH_SQUARE) {
-                    final boolean xx = x - radius < xp && xp < x + radius;
-                    final boolean yy = y - radius < yp && yp < y + radius;
-                    drawCondition = xx && yy;
-                }
+    /** Draws a point at the given coordinates with the given ARGB color (format 0xAARRGGBB) **/
+    public void point(int x, int y, int radius, int color) {
+        if (radius <= 0) return;
+        if (recorder != null) {
+            record(DrawCommand.POINT).set(x, y, radius, color, 0);
+            return;
+        }
 
-                if (drawCondition) {
-                    setPixel(xp, yp, color);
-                }
+        final int[] stamp = brushStamp(radius);
+        for (int dy = -radius; dy <= radius; dy++) {
+            final int halfWidth = stamp[Math.abs(dy)];
+            if (halfWidth >= 0) {
+                span(x - halfWidth, x + halfWidth, y + dy, color);
             }
         }
     }
 
     /** Draws a line between the two given end points (x0, y0) and (x1, y1) **/
     public void line(int x0, int y0, int x1, int y1, Color color) {
-        if (x0 < left && x1 < left) return; // both too left
-        if (x0 > right && x1 > right) return; // both too right
-        if (y0 < top && y1 < top) return; // both too top
-        if (y0 > bottom && y1 > bottom) return; // both too bottom
-
         if (color == null) return;
+        line(x0, y0, x1, y1, color.toInt());
+    }
 
-        final float slope;
-        final int dir;
-        final float theta;
-
-        if (x1 - x0 != 0) {
-            slope = (float) (y1 - y0) / (float) (x1 - x0);
-            theta = (float) Math.atan2(y1 - y0, x1 - x0);
-            dir = theta <= -PI_OVER_FOUR || theta > THREE_PI_OVER_FOUR ? -1 : 1;
+    /** Draws a line between the two given end points (x0, y0) and (x1, y1) (both included) with the given ARGB color (format 0xAARRGGBB) **/
+    public void line(int x0, int y0, int x1, int y1, int color) {
+        if ((color >>> 24) == 0) return;
+        if (recorder != null) {
+            record(DrawCommand.LINE).set(x0, y0, x1, y1, color);
+            return;
+        }
 
-            // project line points to the screen border if the points are outside to optimize
-            // p0
-            if (x0 < left) {
-                y0 += (left-x0) * slope;
-                x0 = left;
-            }
-            if (y0 < top) {
-                x0 += (top - y0) / slope;
-                y0 = top;
-            }
-            if (x0 > right) {
-                y0 -= (x0 - right) * slope;
-                x0 = right;
-            }
-            if (y0 > bottom) {
-                x0 -= (y0 - bottom) / slope;
-                y0 = bottom;
-            }
-            // p1
-            if (x1 < left) {
-                y1 += (left-x1) * slope;
-                x1 = left;
-            }
-            if (y1 < top) {
-                x1 += (top - y1) / slope;
-                y1 = top;
-            }
-            if (x1 > right) {
-                y1 -= (x1 - right) * slope;
-                x1 = right;
-            }
-            if (y1 > bottom) {
-                x1 -= (y1 - bottom) / slope;
-                y1 = bottom;
-            }
-        } else {
-            x0 = Math.clamp(x0, left, right);
-            y0 = Math.clamp(y0, top, bottom);
-            for (int yp = 0; yp < Math.abs(y1 - y0); yp++) {
-                point(x0, yp + (y0 < y1 ? y0 : y1 + 1), strokeWeight, color);
+        // thick strokes can reach into the screen from a little outside the bounds
+        final int margin = strokeWeight > 1 ? strokeWeight : 0;
+        final int minX = clipLeft - margin;
+        final int maxX = clipRight + margin;
+        final int minY = clipTop - margin;
+        final int maxY = clipBottom + margin;
+
+        // both end points on the same outer side of the bounds
+        if ((outcode(x0, y0, minX, maxX, minY, maxY) & outcode(x1, y1, minX, maxX, minY, maxY)) != 0) return;
+
+        final long dx = (long) x1 - x0;
+        final long dy = (long) y1 - y0;
+        final int sx = dx < 0 ? -1 : 1;
+        final int sy = dy < 0 ? -1 : 1;
+
+        // the line is walked one step at a time along its major axis,
+        // at step i the minor axis offset is k(i) = floor((2 * i * minor + major) / (2 * major))
+        final boolean xMajor = Math.abs(dx) >= Math.abs(dy);
+        final long major = xMajor ? Math.abs(dx) : Math.abs(dy);
+        final long minor = xMajor ? Math.abs(dy) : Math.abs(dx);
+        final int majorStart = xMajor ? x0 : y0;
+        final int minorStart = xMajor ? y0 : x0;
+        final int majorSign = xMajor ? sx : sy;
+        final int minorSign = xMajor ? sy : sx;
+        final int majorMin = xMajor ? minX : minY;
+        final int majorMax = xMajor ? maxX : maxY;
+        final int minorMin = xMajor ? minY : minX;
+        final int minorMax = xMajor ? maxY : maxX;
+
+        // clip the step range exactly, so the visible pixels are the same as if the whole line was walked
+        long first = Math.max(0, majorSign > 0 ? (long) majorMin - majorStart : (long) majorStart - majorMax);
+        long last = Math.min(major, majorSign > 0 ? (long) majorMax - majorStart : (long) majorStart - majorMin);
+        final long kMin = Math.max(0, minorSign > 0 ? (long) minorMin - minorStart : (long) minorStart - minorMax);
+        final long kMax = Math.min(minor, minorSign > 0 ? (long) minorMax - minorStart : (long) minorStart - minorMin);
+        if (kMin > kMax) return;
+        if (minor > 0) {
+            first = Math.max(first, Math.ceilDiv((2 * kMin - 1) * major, 2 * minor));
+            last = Math.min(last, Math.ceilDiv((2 * kMax + 1) * major, 2 * minor) - 1);
+        }
+        if (first > last) return;
+
+        final long twoMajor = 2 * Math.max(major, 1);
+        final long twoMinor = 2 * minor;
+        final long n = 2 * first * minor + major;
+        long error = n % twoMajor;
+        int steps = (int) (last - first);
+
+        final int majorPos = (int) (majorStart + majorSign * first);
+        final int minorPos = (int) (minorStart + minorSign * (n / twoMajor));
+        int x = xMajor ? majorPos : minorPos;
+        int y = xMajor ? minorPos : majorPos;
+
+        if (strokeWeight <= 1) {
+            // 1 pixel fast path: walk the pixels array directly (y is flipped, so going up means going back one row)
+            final int majorStep = xMajor ? sx : -sy * width;
+            final int minorStep = xMajor ? -sy * width : sx;
+            int index = (height - 1 - (y + ty)) * width + x + tx;
+
+            final int majorEnd = (int) (majorStart + majorSign * last);
+            final int minorEnd = (int) (minorStart + minorSign * ((2 * last * minor + major) / twoMajor));
+            final int xEnd = xMajor ? majorEnd : minorEnd;
+            final int yEnd = xMajor ? minorEnd : majorEnd;
+            markDirty(Math.min(x, xEnd) + tx, height - 1 - (Math.max(y, yEnd) + ty), Math.max(x, xEnd) + tx, height - 1 - (Math.min(y, yEnd) + ty));
+
+            for (; steps >= 0; steps--) {
+                blendPixel(index, color);
+                index += majorStep;
+                error += twoMinor;
+                if (error >= twoMajor) {
+                    error -= twoMajor;
+                    index += minorStep;
+                }
             }
-
             return;
         }
 
-        // if slope is 45° or less
-        // do the loop on the x because the increase in x is greater than the one on the y
-        if (Math.abs(slope) < 1) {
-            int yp;
-            for (int xp = 0; xp < Math.abs(x1 - x0); xp++) {
-                yp = (int) (slope * xp);
-                point(x0 + (xp * dir), y0 + (yp * dir), strokeWeight, color);
+        // thick strokes: the brush stamps along the line are merged into a single span per row,
+        // so every covered pixel is written once no matter how much the stamps overlap
+        final int radius = strokeWeight;
+        final int[] stamp = brushStamp(radius);
+        final int majorStepX = xMajor ? sx : 0;
+        final int majorStepY = xMajor ? 0 : sy;
+        final int minorStepX = xMajor ? 0 : sx;
+        final int minorStepY = xMajor ? sy : 0;
+        int sweepTop = Integer.MAX_VALUE;
+        int sweepBottom = Integer.MIN_VALUE;
+        for (; steps >= 0; steps--) {
+            final int rowMin = Math.max(clipTop, y - radius);
+            final int rowMax = Math.min(clipBottom, y + radius);
+            for (int yp = rowMin; yp <= rowMax; yp++) {
+                final int halfWidth = stamp[Math.abs(yp - y)];
+                if (halfWidth < 0) continue;
+                final int row = yp - clipTop;
+                sweepStart[row] = Math.min(sweepStart[row], x - halfWidth);
+                sweepEnd[row] = Math.max(sweepEnd[row], x + halfWidth);
             }
-        } else if (Math.abs(slope) > 1) {
-            int xp;
-            for (int yp = 0; yp < Math.abs(y1 - y0); yp++) {
-                xp = (int) (yp / slope);
-                point(x0 + (xp * dir), y0 + (yp * dir), strokeWeight, color);
+            sweepTop = Math.min(sweepTop, rowMin);
+            sweepBottom = Math.max(sweepBottom, rowMax);
+
+            x += majorStepX;
+            y += majorStepY;
+            error += twoMinor;
+            if (error >= twoMajor) {
+                error -= twoMajor;
+                x += minorStepX;
+                y += minorStepY;
             }
-        } else {
-            for (int xp = 0; xp < Math.abs(x1 - x0); xp++) {
-                int xs = 0 > theta && theta > -HALF_PI ? -1 : 1;
-                int ys = HALF_PI <= theta && theta < Math.PI ? -1 : 1;
-                point(x0 + (xp * dir * xs), y0 + (xp * dir * ys), strokeWeight, color);
+        }
+
+        for (int yp = sweepTop; yp <= sweepBottom; yp++) {
+            final int row = yp - clipTop;
+            if (sweepStart[row] <= sweepEnd[row]) {
+                span(sweepStart[row], sweepEnd[row], yp, color);
             }
+            sweepStart[row] = Integer.MAX_VALUE;
+            sweepEnd[row] = Integer.MIN_VALUE;
         }
     }
 
     /** Draws a rectangle with the given top left corner (x0, y0) and bottom right corner (x1, y1) coordinates **/
     public void rectangle(int x0, int y0, int x1, int y1) {
-        final int hSide = Math.abs(x1 - x0);
-        final int vSide = Math.abs(y1 - y0);
+        if (recorder != null) {
+            record(DrawCommand.RECTANGLE).set(x0, y0, x1, y1, 0);
+            return;
+        }
 
         // filling
         if (fillEnabled) {
-            for (int yp = 0; yp < vSide; yp++) {
-                for (int xp = 0; xp < hSide; xp++) {
-                    point(xp + Math.min(x0, x1), yp + Math.min(y0, y1), 1, fillColor);
-                }
+            final int fill = fillColor;
+            // the fill covers [min, max) on both axes, the outlines are drawn on the max edges
+            final int xMin = Math.min(x0, x1);
+            final int xMax = Math.max(x0, x1) - 1;
+            final int yMin = Math.max(Math.min(y0, y1), clipTop);
+            final int yMax = Math.min(Math.max(y0, y1) - 1, clipBottom);
+            for (int yp = yMin; yp <= yMax; yp++) {
+                span(xMin, xMax, yp, fill);
             }
         }
         
         // outlines
         if (outlinesEnabled) {
-            line(x0, y0, x1, y0, outlineColor);
-            line(x0, y1, x1, y1, outlineColor);
-            line(x0, y0, x0, y1, outlineColor);
-            line(x1, y0, x1, y1, outlineColor);
+            final int outline = outlineColor;
+            line(x0, y0, x1, y0, outline);
+            line(x0, y1, x1, y1, outline);
+            line(x0, y0, x0, y1, outline);
+            line(x1, y0, x1, y1, outline);
         }
     }
 
     /** Does not support outline, only filling **/
     public void ellipse(int cx, int cy, int xRadius, int yRadius) {
-        for (int yp = cy - yRadius; yp < cy + yRadius; yp++) {
-            for (int xp = cx - xRadius; xp < cx + xRadius; xp++) {
-                final float x2 = (xp - cx) * (xp - cx);
-                final float y2 = (yp - cy) * (yp - cy);
-                final float a2 = xRadius * xRadius;
-                final float b2 = yRadius * yRadius;
+        if (xRadius <= 0 || yRadius <= 0) return;
+        if (recorder != null) {
+            record(DrawCommand.ELLIPSE).set(cx, cy, xRadius, yRadius, 0);
+            return;
+        }
 
-                final float ellipseEquation = (x2 / a2) + (y2 / b2);
+        final int fill = fillColor;
+        final long a2 = (long) xRadius * xRadius;
+        final long b2 = (long) yRadius * yRadius;
+        final long a2b2 = a2 * b2;
+
+        // a pixel is inside if x^2 * b^2 + y^2 * a^2 < a^2 * b^2
+        // the half width only shrinks while moving away from the center row,
+        // so it is stepped down incrementally instead of being recomputed for every row
+        int halfWidth = xRadius;
+        for (int dy = 0; dy < yRadius; dy++) {
+            final long rowTerm = dy * dy * a2;
+            while (halfWidth >= 0 && halfWidth * (long) halfWidth * b2 + rowTerm >= a2b2) {
+                halfWidth--;
+            }
+            if (halfWidth < 0) break;
 
-                if (ellipseEquation < 1) {
-                    point(xp, yp, 1, fillColor);
-                }
+            span(cx - halfWidth, cx + halfWidth, cy + dy, fill);
+            if (dy != 0) {
+                span(cx - halfWidth, cx + halfWidth, cy - dy, fill);
             }
         }
     }
 
     // collections
     public void points(Vector2[] points, int radius, Color color) {
+        if (color == null) return;
+        points(points, radius, color.toInt());
+    }
+
+    public void points(Vector2[] points, int radius, int color) {
         for (Vector2 point : points) {
             point((int) point.getX(), (int) point.getY(), radius, color);
         }
     }
 
     public void lines(Vector2[] points, Color color, boolean close) {
+        if (color == null) return;
+        lines(points, color.toInt(), close);
+    }
+
+    public void lines(Vector2[] points, int color, boolean close) {
         int prevX = (int) points[0].getX();
         int prevY = (int) points[0].getY();
         int currX, currY;
@@ -443,6 +895,11 @@ public class Screen {
     // derived
 
     public void polarLine(int x, int y, int length, float radiansAngle, Color color) {
+        if (color == null) return;
+        polarLine(x, y, length, radiansAngle, color.toInt());
+    }
+
+    public void polarLine(int x, int y, int length, float radiansAngle, int color) {
         final int x1 = (int) (x + length * Math.cos(radiansAngle));
         final int y1 = (int) (y + length * Math.sin(radiansAngle));
         line(x, y, x1, y1, color);
@@ -455,69 +912,170 @@ public class Screen {
     
     public void circle(int cx, int cy, int radius) {
         if (radius < 0 || isBoundingBoxOutside(cx, cy, radius, radius)) return;
+        if (recorder != null) {
+            record(DrawCommand.CIRCLE).set(cx, cy, radius, 0, 0);
+            return;
+        }
+
+        final int outline = outlineColor;
+        final int fill = fillColor;
 
         // a circle with radius one is just a point
         if (radius == 0) {
-            point(cx, cy, 1, outlineColor);
+            point(cx, cy, 1, outline);
             return;
         }
 
-        final float minR = radius - (strokeWeight + 1) / 2.0f;
+        final float minR = Math.max(0, radius - (strokeWeight + 1) / 2.0f);
         final float maxR = radius + (strokeWeight + 1) / 2.0f;
-
-        for (int yp = (int) (cy - maxR); yp < cy + maxR + 1; yp++) {
-            for (int xp = (int) (cx - maxR); xp < cx + maxR + 1; xp++) {
-                final int x2 = (xp - cx) * (xp - cx);
-                final int y2 = (yp - cy) * (yp - cy);
-                final int p2 = x2 + y2;
-                final int minR2 = (int) (minR * minR);
-                final int maxR2 = (int) (maxR * maxR);
-                // prioritize outline over filling (so no weird inside shapes appear)
-                if (minR2 <= p2 && p2 < maxR2 && outlinesEnabled) {
-                    point(xp, yp, 1, outlineColor);
-                } else if (p2 < minR2) {
-                    point(xp, yp, 1, fillColor);
-                }
+        final int minR2 = (int) (minR * minR);
+        final int maxR2 = (int) (maxR * maxR);
+
+        // the outline ring is minR2 <= x^2 + y^2 < maxR2, the filling is x^2 + y^2 < minR2
+        // both half widths only shrink while moving away from the center row,
+        // so they are stepped down incrementally instead of being recomputed for every row
+        int outer = (int) maxR + 1;
+        int inner = (int) minR + 1;
+        for (int dy = 0; dy * dy < maxR2; dy++) {
+            final int dy2 = dy * dy;
+            while (outer >= 0 && outer * outer + dy2 >= maxR2) outer--;
+            while (inner >= 0 && inner * inner + dy2 >= minR2) inner--;
+
+            circleRow(cx, cy + dy, inner, outer, fill, outline);
+            if (dy != 0) {
+                circleRow(cx, cy - dy, inner, outer, fill, outline);
             }
         }
     }
 
+    /** Draws one row of a circle: the filling within inner and the outline ring between inner and outer (half widths, -1 if empty) **/
+    private void circleRow(int cx, int y, int inner, int outer, int fill, int outline) {
+        if (fillEnabled && inner >= 0) {
+            span(cx - inner, cx + inner, y, fill);
+        }
+        if (outlinesEnabled && outer > inner) {
+            span(cx - outer, cx - inner - 1, y, outline);
+            span(cx + inner + 1, cx + outer, y, outline);
+        }
+    }
+
     public void triangle(Vector2 p0, Vector2 p1, Vector2 p2) {
-        if (fillEnabled) {    
-            int leftBound = (int) Math.max(getLeft(), Math.min(Math.min(p0.getX(), p1.getX()), p2.getX()));
-            int rightBound = (int) Math.min(getRight() + 1, Math.max(Math.max(p0.getX(), p1.getX()), p2.getX()));
-            int topBound = (int) Math.max(getTop(), Math.min(Math.min(p0.getY(), p1.getY()), p2.getY()));
-            int bottomBound = (int) Math.min(getBottom() + 1, Math.max(Math.max(p0.getY(), p1.getY()), p2.getY()));
-
-            final Vector3 p03 = new Vector3(p0.getX(), p0.getY(), 0);
-            final Vector3 p13 = new Vector3(p1.getX(), p1.getY(), 0);
-            final Vector3 p23 = new Vector3(p2.getX(), p2.getY(), 0);
-
-            final Vector3 side01 = Vector3.difference(p13, p03);
-            final Vector3 side12 = Vector3.difference(p23, p13);
-            final Vector3 side20 = Vector3.difference(p03, p23);
-            
-            Vector3 p = new Vector3();
-            for (int yp = topBound; yp < bottomBound; yp++) {   
-                for (int xp = leftBound; xp < rightBound; xp++) {
-                    p.set(xp, yp, 0);
-                    int z0 = (int) Math.signum(Vector3.cross(side01, Vector3.difference(p, p03)).getZ());
-                    int z1 = (int) Math.signum(Vector3.cross(side12, Vector3.difference(p, p13)).getZ());
-                    int z2 = (int) Math.signum(Vector3.cross(side20, Vector3.difference(p, p23)).getZ());
-                    if (z0 == z1 && z1 == z2) {
-                        point(xp, yp, 1, fillColor);
-                    }
-                }
-            }
+        triangle(p0.getX(), p0.getY(), p1.getX(), p1.getY(), p2.getX(), p2.getY());
+    }
+
+    /** Draws the triangle with the given vertices, pixels exactly on a shared edge are only filled by one of the two triangles (top-left rule) **/
+    public void triangle(float x0, float y0, float x1, float y1, float x2, float y2) {
+        if (recorder != null) {
+            record(DrawCommand.TRIANGLE).set(x0, y0, x1, y1, x2, y2);
+            return;
+        }
+
+        if (fillEnabled) {
+            fillTriangle(x0, y0, x1, y1, x2, y2, fillColor);
         }
 
         // draw outlines over the filled pixels to be sure they are visible and not overdrawn
         if (outlinesEnabled) {
-            lines(new Vector2[] {p0, p1, p2}, outlineColor, true);
+            final int outline = outlineColor;
+            line((int) x0, (int) y0, (int) x1, (int) y1, outline);
+            line((int) x1, (int) y1, (int) x2, (int) y2, outline);
+            line((int) x2, (int) y2, (int) x0, (int) y0, outline);
+        }
+    }
+
+    /**
+     * Fills the given triangle one row span at a time
+     * Vertices are snapped to a SUBPIXEL_STEPS fixed point grid and every pixel is sampled at its integer coordinates
+    **/
+    private void fillTriangle(float x0, float y0, float x1, float y1, float x2, float y2, int color) {
+        if ((color >>> 24) == 0) return;
+
+        long ax = Math.round(x0 * SUBPIXEL_STEPS), ay = Math.round(y0 * SUBPIXEL_STEPS);
+        long bx = Math.round(x1 * SUBPIXEL_STEPS), by = Math.round(y1 * SUBPIXEL_STEPS);
+        final long cx = Math.round(x2 * SUBPIXEL_STEPS), cy = Math.round(y2 * SUBPIXEL_STEPS);
+
+        // make the winding counter clockwise so every edge function is positive inside
+        final long area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        if (area == 0) return;
+        if (area < 0) {
+            long t = ax; ax = bx; bx = t;
+            t = ay; ay = by; by = t;
         }
+
+        final int yMin = (int) Math.max(Math.max(getTop(), clipTop), Math.ceilDiv(Math.min(ay, Math.min(by, cy)), SUBPIXEL_STEPS));
+        final int yMax = (int) Math.min(Math.min(getBottom(), clipBottom), Math.floorDiv(Math.max(ay, Math.max(by, cy)), SUBPIXEL_STEPS));
+        final int xMin = Math.max(getLeft(), clipLeft);
+        final int xMax = Math.min(getRight(), clipRight);
+        if (yMin > yMax) return;
+
+        // edge function of the edge (a, b) at pixel (x, y): e = (bx - ax) * (y - ay) - (by - ay) * (x - ax)
+        // which moves by stepX = -(by - ay) along a row and by stepY = (bx - ax) between rows
+        // the value at x = 0 is kept for every edge and stepped from row to row
+        final long stepX0 = -(by - ay) * SUBPIXEL_STEPS, stepY0 = (bx - ax) * SUBPIXEL_STEPS;
+        final long stepX1 = -(cy - by) * SUBPIXEL_STEPS, stepY1 = (cx - bx) * SUBPIXEL_STEPS;
+        final long stepX2 = -(ay - cy) * SUBPIXEL_STEPS, stepY2 = (ax - cx) * SUBPIXEL_STEPS;
+
+        // pixels lying exactly on an edge are only kept for top or left edges,
+        // the others have their edge function biased by one so zero falls outside
+        long row0 = edgeFunction(ax, ay, bx, by, yMin) + (isTopLeft(ax, ay, bx, by) ? 0 : -1);
+        long row1 = edgeFunction(bx, by, cx, cy, yMin) + (isTopLeft(bx, by, cx, cy) ? 0 : -1);
+        long row2 = edgeFunction(cx, cy, ax, ay, yMin) + (isTopLeft(cx, cy, ax, ay) ? 0 : -1);
+
+        for (int y = yMin; y <= yMax; y++) {
+            // every edge leaves a half row inside, the span is where the three of them overlap
+            long spanStart = xMin;
+            long spanEnd = xMax;
+
+            spanStart = Math.max(spanStart, edgeSpanStart(row0, stepX0));
+            spanEnd = Math.min(spanEnd, edgeSpanEnd(row0, stepX0));
+            spanStart = Math.max(spanStart, edgeSpanStart(row1, stepX1));
+            spanEnd = Math.min(spanEnd, edgeSpanEnd(row1, stepX1));
+            spanStart = Math.max(spanStart, edgeSpanStart(row2, stepX2));
+            spanEnd = Math.min(spanEnd, edgeSpanEnd(row2, stepX2));
+
+            if (spanStart <= spanEnd) {
+                span((int) spanStart, (int) spanEnd, y, color);
+            }
+
+            row0 += stepY0;
+            row1 += stepY1;
+            row2 += stepY2;
+        }
+    }
+
+    /** Returns the edge function of the fixed point edge (a, b) at the pixel (0, y) **/
+    private static long edgeFunction(long ax, long ay, long bx, long by, int y) {
+        return (bx - ax) * (y * (long) SUBPIXEL_STEPS - ay) + (by - ay) * ax;
+    }
+
+    /**
+     * Returns true if the edge (a, b) of a counter clockwise triangle is a top or a left edge (y-up coordinates):
+     * left edges go down, and a top edge is horizontal with the inside below it, so it goes to the left
+    **/
+    private static boolean isTopLeft(long ax, long ay, long bx, long by) {
+        return by < ay || (by == ay && bx < ax);
+    }
+
+    /** Returns the first x where value + step * x >= 0 (Long.MIN_VALUE if there's no lower limit) **/
+    private static long edgeSpanStart(long value, long step) {
+        if (step > 0) return Math.ceilDiv(-value, step);
+        if (step == 0 && value < 0) return Long.MAX_VALUE;
+        return Long.MIN_VALUE;
+    }
+
+    /** Returns the last x where value + step * x >= 0 (Long.MAX_VALUE if there's no upper limit) **/
+    private static long edgeSpanEnd(long value, long step) {
+        if (step < 0) return Math.floorDiv(value, -step);
+        if (step == 0 && value < 0) return Long.MIN_VALUE;
+        return Long.MAX_VALUE;
     }
 
     public void vector(Vector2 vector, int x, int y, Color color) {
+        if (color == null) return;
+        vector(vector, x, y, color.toInt());
+    }
+
+    public void vector(Vector2 vector, int x, int y, int color) {
         final float magnitude = vector.magnitude();
         
         if ((int) magnitude == 0) {
@@ -537,33 +1095,312 @@ public class Screen {
         polarLine(x1, y1, arrowLength, angle - angleOffset, color);
     }
 
+    /** Draws the given image with its bottom left corner at the given coordinates (when recorded, the image pixels are read when the draw call is actually drawn) **/
     public void image(Image image, int x, int y) {
+        if (recorder != null) {
+            record(DrawCommand.IMAGE).set(x, y, 0, 0, 0).image = image;
+            return;
+        }
+
+        blit(image, 0, 0, image.getWidth(), image.getHeight(), x, y, image.isMappedOpaque());
+    }
+
+    /**
+     * Draws the sprite of the given index of the given atlas with its bottom left corner at the given coordinates
+     * (when recorded, the atlas pixels are read when the draw call is actually drawn)
+    **/
+    public void sprite(SpriteAtlas atlas, int index, int x, int y) {
+        if (index < 0 || index >= atlas.size()) {
+            throw new IllegalArgumentException("No sprite " + index + " in the atlas");
+        }
+        if (recorder != null) {
+            record(DrawCommand.SPRITE).set(x, y, index, 0, 0).atlas = atlas;
+            return;
+        }
+
+        blit(atlas.getImage(), atlas.getX(index), atlas.getY(index), atlas.getWidth(index), atlas.getHeight(index), x, y, atlas.isOpaque(index));
+    }
+
+    /**
+     * Draws the given image scaled by the given factor and rotated counterclockwise by the given angle around its center,
+     * the center landing at the given coordinates
+    **/
+    public void image(Image image, float x, float y, float scale, float radiansAngle) {
+        image(image, x, y, scale, scale, radiansAngle, image.getWidth() / 2f, image.getHeight() / 2f, 0);
+    }
+
+    /**
+     * Draws the given image scaled, rotated counterclockwise by the given angle and flipped (FLIP_* flags) around the given pivot
+     * (in image pixels from its bottom left corner), the pivot landing at the given coordinates
+     * The image is sampled with the current filter (when recorded, the image pixels are read when the draw call is actually drawn)
+    **/
+    public void image(Image image, float x, float y, float scaleX, float scaleY, float radiansAngle, float pivotX, float pivotY, int flip) {
+        transformedImage(image, 0, 0, image.getWidth(), image.getHeight(), x, y, scaleX, scaleY, radiansAngle, pivotX, pivotY, flip);
+    }
+
+    /** Same as image(image, x, y, scale, radiansAngle) with the sprite of the given index of the given atlas **/
+    public void sprite(SpriteAtlas atlas, int index, float x, float y, float scale, float radiansAngle) {
+        sprite(atlas, index, x, y, scale, scale, radiansAngle, atlas.getWidth(index) / 2f, atlas.getHeight(index) / 2f, 0);
+    }
+
+    /** Same as image(image, x, y, scaleX, scaleY, radiansAngle, pivotX, pivotY, flip) with the sprite of the given index of the given atlas **/
+    public void sprite(SpriteAtlas atlas, int index, float x, float y, float scaleX, float scaleY, float radiansAngle, float pivotX, float pivotY, int flip) {
+        if (index < 0 || index >= atlas.size()) {
+            throw new IllegalArgumentException("No sprite " + index + " in the atlas");
+        }
+        transformedImage(atlas.getImage(), atlas.getX(index), atlas.getY(index), atlas.getWidth(index), atlas.getHeight(index),
+            x, y, scaleX, scaleY, radiansAngle, pivotX, pivotY, flip);
+    }
+
+    /** Draws the given region of the given image transformed (see transformedBlit()), or records it when recording **/
+    private void transformedImage(Image image, int regionX, int regionY, int regionWidth, int regionHeight,
+                                  float x, float y, float scaleX, float scaleY, float angle, float pivotX, float pivotY, int flip) {
+        if (recorder != null) {
+            record(DrawCommand.TRANSFORMED_IMAGE).set(regionX, regionY, regionWidth, regionHeight, flip)
+                .setTransform(x, y, scaleX, scaleY, angle, pivotX, pivotY).image = image;
+            return;
+        }
+
+        transformedBlit(image, regionX, regionY, regionWidth, regionHeight, x, y, scaleX, scaleY, angle, pivotX, pivotY, flip);
+    }
+
+    /**
+     * Draws the regionWidth x regionHeight region of the given image whose top left pixel is at (regionX, regionY) in its pixels array,
+     * with its bottom left corner at the given coordinates
+     * Opaque regions are copied row by row when blending would not change them
+     * The rows of a mapped image are read straight from its file pages, without copying the whole image into an array
+    **/
+    private void blit(Image image, int regionX, int regionY, int regionWidth, int regionHeight, int x, int y, boolean opaque) {
         x += tx;
         y += ty;
 
-        // not using left and right because there's setPixel,
-        // which takes in screen coordinates,
+        // not using left and right because the image is blitted in screen coordinates,
         // not world space coordinates (the translated ones)
-        final int x0 = Math.max(tx + getLeft(), x);
-        final int x1 = Math.min(tx + getRight(), x + image.getWidth());
+        final int x0 = Math.max(Math.max(tx + getLeft(), clipX0), x);
+        final int x1 = Math.min(Math.min(tx + getRight(), clipX1) + 1, x + regionWidth);
 
         final int dx = Math.max(0, x0 - x);
 
-        final int y0 = Math.max(ty + getTop(), y);
-        final int y1 = Math.min(ty + getBottom(), y + image.getHeight());
+        final int y0 = Math.max(Math.max(ty + getTop(), height - 1 - clipY1), y);
+        final int y1 = Math.min(Math.min(ty + getBottom(), height - 1 - clipY0) + 1, y + regionHeight);
         
         final int dy = Math.max(0, y0 - y);
 
-        int pixelX = 0;
-        int pixelY = 0;
+        if (x0 >= x1 || y0 >= y1) return;
+        markDirty(x0, height - y1, x1 - 1, height - 1 - y0);
+
+        // opaque pixels replace what is below them in every format
+        final boolean copy = opaque && (blendMode == BLEND_REPLACE || blendMode == BLEND_SOURCE_OVER);
+
+        final IntBuffer mapped = image.getMappedPixels();
+        if (mapped != null && !copy && samples.length < x1 - x0) {
+            samples = new int[x1 - x0];
+        }
+
+        // both the screen and the image are y-up, so rows are walked from the bottom of their arrays
+        final int[] source = mapped == null ? image.getPixels() : null;
+        for (int yp = y0; yp < y1; yp++) {
+            final int sourceRow = regionY + regionHeight - 1 - (dy + yp - y0);
+            final int from = sourceRow * image.getWidth() + regionX + dx;
+            final int row = height - 1 - yp;
+            if (mapped != null) {
+                if (copy) {
+                    mapped.get(from, pixels, row * width + x0, x1 - x0);
+                } else {
+                    mapped.get(from, samples, 0, x1 - x0);
+                    Blend.blit(samples, 0, FORMAT_ARGB, pixels, row * width + x0, format, x1 - x0, blendMode);
+                }
+            } else if (copy) {
+                System.arraycopy(source, from, pixels, row * width + x0, x1 - x0);
+            } else {
+                Blend.blit(source, from, FORMAT_ARGB, pixels, row * width + x0, format, x1 - x0, blendMode);
+            }
+        }
+    }
+
+    /**
+     * Draws the given region of the given image (as in blit()) transformed around the given pivot, landing at (x, y)
+     * Every screen pixel row crossed by the image is inverse mapped: the image coordinates of the pixel centers are walked
+     * in 16.16 fixed point along the row, only over the span where they fall inside the region, then the samples are blended at once
+    **/
+    private void transformedBlit(Image image, int regionX, int regionY, int regionWidth, int regionHeight,
+                                 float x, float y, float scaleX, float scaleY, float angle, float pivotX, float pivotY, int flip) {
+        if (scaleX == 0 || scaleY == 0 || regionWidth == 0 || regionHeight == 0) return;
+
+        // the pivot in y-up screen coordinates
+        final double ax = x + tx;
+        final double ay = y + ty;
+        final double cos = Math.cos(angle);
+        final double sin = Math.sin(angle);
+
+        // the screen area covered by the region corners
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            final double lx = ((corner & 1) * regionWidth - pivotX) * scaleX;
+            final double ly = ((corner >> 1) * regionHeight - pivotY) * scaleY;
+            final double cx = ax + cos * lx - sin * ly;
+            final double cy = ay + sin * lx + cos * ly;
+            minX = Math.min(minX, cx);
+            maxX = Math.max(maxX, cx);
+            minY = Math.min(minY, cy);
+            maxY = Math.max(maxY, cy);
+        }
+
+        // rows are walked from the left edge of the image, whatever the clip area, so that tile views sample the same pixels
+        final int left = (int) Math.floor(minX);
+        // not using left and right because the image is drawn in screen coordinates (see blit())
+        final int x0 = Math.max(Math.max(tx + getLeft(), clipX0), left);
+        final int x1 = (int) Math.min(Math.min(tx + getRight(), clipX1) + 1, Math.ceil(maxX));
+        final int y0 = (int) Math.max(Math.max(ty + getTop(), height - 1 - clipY1), Math.floor(minY));
+        final int y1 = (int) Math.min(Math.min(ty + getBottom(), height - 1 - clipY0) + 1, Math.ceil(maxY));
+        if (x0 >= x1 || y0 >= y1) return;
+
+        // how much the region coordinates (y-up, from its bottom left corner) move from one pixel of a row to the next
+        final double flipX = (flip & FLIP_HORIZONTAL) != 0 ? -1 : 1;
+        final double flipY = (flip & FLIP_VERTICAL) != 0 ? -1 : 1;
+        final int du = (int) Math.round(cos / scaleX * flipX * FIXED_ONE);
+        final int dv = (int) Math.round(-sin / scaleY * flipY * FIXED_ONE);
+        final long maxU = (long) regionWidth * FIXED_ONE - 1;
+        final long maxV = (long) regionHeight * FIXED_ONE - 1;
+
+        final int spanLength = x1 - x0;
+        if (samples.length < spanLength) {
+            samples = new int[spanLength];
+        }
+
+        // mapped pixels are read where they are, as in blit()
+        final IntBuffer mapped = image.getMappedPixels();
+        final int[] source = mapped == null ? image.getPixels() : null;
+        final int sourceWidth = image.getWidth();
+        int dirtyX0 = Integer.MAX_VALUE, dirtyX1 = -1, dirtyY0 = -1, dirtyY1 = -1;
         for (int yp = y0; yp < y1; yp++) {
-            for (int xp = x0; xp < x1; xp++) {
-                setPixel(x0 + pixelX, y0 + pixelY, image.getPixel(dx + pixelX, dy + pixelY));
-                pixelX++;
+            // region coordinates of the center of the leftmost pixel of the row
+            final double dx = left + 0.5 - ax;
+            final double dy = yp + 0.5 - ay;
+            final double u = pivotX + (cos * dx + sin * dy) / scaleX;
+            final double v = pivotY + (-sin * dx + cos * dy) / scaleY;
+            final long u0 = (long) Math.floor((flipX < 0 ? regionWidth - u : u) * FIXED_ONE);
+            final long v0 = (long) Math.floor((flipY < 0 ? regionHeight - v : v) * FIXED_ONE);
+
+            // the pixels of the row whose center falls inside the region, from the left one
+            final int first = Math.max(Math.max(firstInside(u0, du, maxU), firstInside(v0, dv, maxV)), x0 - left);
+            final int last = Math.min(Math.min(lastInside(u0, du, maxU), lastInside(v0, dv, maxV)), x1 - 1 - left);
+            if (first > last) continue;
+
+            int su = (int) (u0 + (long) first * du);
+            int sv = (int) (v0 + (long) first * dv);
+            if (filter == FILTER_BILINEAR) {
+                for (int i = first; i <= last; i++) {
+                    samples[i - first] = sampleBilinear(source, mapped, sourceWidth, regionX, regionY, regionWidth, regionHeight, su, sv);
+                    su += du;
+                    sv += dv;
+                }
+            } else {
+                final int bottom = (regionY + regionHeight - 1) * sourceWidth + regionX;
+                if (mapped != null) {
+                    for (int i = first; i <= last; i++) {
+                        samples[i - first] = mapped.get(bottom - (sv >> 16) * sourceWidth + (su >> 16));
+                        su += du;
+                        sv += dv;
+                    }
+                } else {
+                    for (int i = first; i <= last; i++) {
+                        samples[i - first] = source[bottom - (sv >> 16) * sourceWidth + (su >> 16)];
+                        su += du;
+                        sv += dv;
+                    }
+                }
             }
-            pixelX = 0;
-            pixelY++;
+
+            final int row = height - 1 - yp;
+            Blend.blit(samples, 0, FORMAT_ARGB, pixels, row * width + left + first, format, last - first + 1, blendMode);
+
+            dirtyX0 = Math.min(dirtyX0, left + first);
+            dirtyX1 = Math.max(dirtyX1, left + last);
+            if (dirtyY1 < 0) dirtyY1 = row;
+            dirtyY0 = row;
+        }
+
+        if (dirtyX1 >= 0) {
+            markDirty(dirtyX0, dirtyY0, dirtyX1, dirtyY1);
+        }
+    }
+
+    /** Returns the first step k >= 0 for which start + k * step is in [0, max], or Integer.MAX_VALUE if there is none **/
+    private static int firstInside(long start, long step, long max) {
+        final long k;
+        if (step > 0) {
+            k = start >= 0 ? 0 : Math.ceilDiv(-start, step);
+        } else if (step < 0) {
+            k = start <= max ? 0 : Math.ceilDiv(start - max, -step);
+        } else {
+            k = start >= 0 && start <= max ? 0 : Integer.MAX_VALUE;
         }
+        return (int) Math.min(k, Integer.MAX_VALUE);
+    }
+
+    /** Returns the last step k for which start + k * step is in [0, max] (when firstInside() found one), or Integer.MAX_VALUE if it never leaves it **/
+    private static int lastInside(long start, long step, long max) {
+        final long k;
+        if (step > 0) {
+            k = Math.floorDiv(max - start, step);
+        } else if (step < 0) {
+            k = Math.floorDiv(start, -step);
+        } else {
+            k = Integer.MAX_VALUE;
+        }
+        return (int) Math.max(-1, Math.min(k, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns the given region pixels around the given 16.16 region coordinates interpolated by their distance
+     * (the colors are weighted by their alpha, so transparent pixels do not darken the edges), read from the mapped pixels if source is null
+    **/
+    private static int sampleBilinear(int[] source, IntBuffer mapped, int sourceWidth, int regionX, int regionY, int regionWidth, int regionHeight, int u, int v) {
+        // coordinates relative to the centers of the pixels, clamped to the region edges
+        final int pu = u - FIXED_ONE / 2;
+        final int pv = v - FIXED_ONE / 2;
+        final int fx = (pu >> 8) & 0xff;
+        final int fy = (pv >> 8) & 0xff;
+        final int c0 = regionX + Math.max(0, pu >> 16);
+        final int c1 = regionX + Math.min(regionWidth - 1, (pu >> 16) + 1);
+        // rows are y-up in the region, but row 0 of the pixels array is the top one
+        final int r0 = (regionY + regionHeight - 1 - Math.max(0, pv >> 16)) * sourceWidth;
+        final int r1 = (regionY + regionHeight - 1 - Math.min(regionHeight - 1, (pv >> 16) + 1)) * sourceWidth;
+
+        final int p00, p10, p01, p11;
+        if (source != null) {
+            p00 = source[r0 + c0];
+            p10 = source[r0 + c1];
+            p01 = source[r1 + c0];
+            p11 = source[r1 + c1];
+        } else {
+            p00 = mapped.get(r0 + c0);
+            p10 = mapped.get(r0 + c1);
+            p01 = mapped.get(r1 + c0);
+            p11 = mapped.get(r1 + c1);
+        }
+        final int w00 = (256 - fx) * (256 - fy), w10 = fx * (256 - fy), w01 = (256 - fx) * fy, w11 = fx * fy;
+
+        final int a0 = p00 >>> 24, a1 = p10 >>> 24, a2 = p01 >>> 24, a3 = p11 >>> 24;
+        if (a0 == a1 && a0 == a2 && a0 == a3) {
+            // same alpha everywhere (e.g. inside an opaque image), the channels are interpolated as they are
+            return (a0 << 24)
+                | (((((p00 >> 16) & 0xff) * w00 + ((p10 >> 16) & 0xff) * w10 + ((p01 >> 16) & 0xff) * w01 + ((p11 >> 16) & 0xff) * w11 + 0x8000) >> 16) << 16)
+                | (((((p00 >> 8) & 0xff) * w00 + ((p10 >> 8) & 0xff) * w10 + ((p01 >> 8) & 0xff) * w01 + ((p11 >> 8) & 0xff) * w11 + 0x8000) >> 16) << 8)
+                | (((p00 & 0xff) * w00 + (p10 & 0xff) * w10 + (p01 & 0xff) * w01 + (p11 & 0xff) * w11 + 0x8000) >> 16);
+        }
+
+        // weights brought down to a 256 total so that the alpha weighted sums fit in ints
+        final int aw00 = a0 * ((w00 + 128) >> 8), aw10 = a1 * ((w10 + 128) >> 8), aw01 = a2 * ((w01 + 128) >> 8), aw11 = a3 * ((w11 + 128) >> 8);
+        final int alpha = aw00 + aw10 + aw01 + aw11;
+        if (alpha == 0) return 0;
+        // a single division for the 3 channels
+        final long reciprocal = (1L << 32) / alpha;
+        final int r = (int) ((((p00 >> 16) & 0xff) * aw00 + ((p10 >> 16) & 0xff) * aw10 + ((p01 >> 16) & 0xff) * aw01 + ((p11 >> 16) & 0xff) * aw11) * reciprocal + (1L << 31) >>> 32);
+        final int g = (int) ((((p00 >> 8) & 0xff) * aw00 + ((p10 >> 8) & 0xff) * aw10 + ((p01 >> 8) & 0xff) * aw01 + ((p11 >> 8) & 0xff) * aw11) * reciprocal + (1L << 31) >>> 32);
+        final int b = (int) (((p00 & 0xff) * aw00 + (p10 & 0xff) * aw10 + (p01 & 0xff) * aw01 + (p11 & 0xff) * aw11) * reciprocal + (1L << 31) >>> 32);
+        return Math.min(255, (alpha + 128) >> 8) << 24 | Math.min(255, r) << 16 | Math.min(255, g) << 8 | Math.min(255, b);
     }
 
     /** Renders the given screen on top of the current one
@@ -576,23 +1413,151 @@ public class Screen {
      * @param right the right bound from which to end rendering the screen
      * @param top the top bound from which to start rendering the screen
      * @param bottom the bottom bound from which to end rendering the screen
+     * @throws IllegalStateException while recording a display list: overlays are drawn right away, they cannot be recorded
      **/
     public void overlay(Screen screen, int x, int y, int left, int right, int top, int bottom) {
+        if (recording != null) {
+            throw new IllegalStateException("Cannot overlay a screen while recording a display list (as in the render() of a threaded sketch)");
+        }
+
         // invalid sample coordinates
         if (left < 0 || right >= screen.getWidth()
             || top < 0 || bottom >= screen.getHeight()) {
             return;
         }
 
-        int pixelX = 0;
-        int pixelY = 0;
-        for (int yp = top; yp < bottom; yp++) {
-            for (int xp = left; xp < right; xp++) {
-                setPixel(x + pixelX, y + pixelY, screen.getPixel(xp, yp));
-                pixelX++;
+        // the other screen is read right away, so everything recorded for parallel rendering has to be drawn first
+        flush();
+
+        // clip the sampled area to the part that lands inside this screen
+        final int x0 = Math.max(left, left + clipX0 - x);
+        final int x1 = Math.min(right, left + clipX1 + 1 - x);
+        final int y0 = Math.max(top, top + height - 1 - clipY1 - y);
+        final int y1 = Math.min(bottom, top + height - clipY0 - y);
+        if (x0 >= x1 || y0 >= y1) return;
+        markDirty(x + x0 - left, height - (y + y1 - top), x + x1 - 1 - left, height - 1 - (y + y0 - top));
+
+        final int[] source = screen.getPixels();
+        for (int yp = y0; yp < y1; yp++) {
+            final int sourceRow = screen.getHeight() - 1 - yp;
+            final int row = height - 1 - (y + yp - top);
+            Blend.blit(source, sourceRow * screen.getWidth() + x0, screen.format, pixels, row * width + x + x0 - left, format, x1 - x0, blendMode);
+        }
+    }
+
+    // spans
+
+    /**
+     * Fills the horizontal run of pixels from x0 to x1 (both included) on row y with the given ARGB color
+     * Takes translation into account and clips the run against the clip area (the whole screen unless this is a tile view)
+    **/
+    private void span(int x0, int x1, int y, int color) {
+        if ((color >>> 24) == 0) return;
+        if (y < clipTop || y > clipBottom) return;
+        if (x0 < clipLeft) x0 = clipLeft;
+        if (x1 > clipRight) x1 = clipRight;
+        if (x0 > x1) return;
+
+        // translate and flip y to make the coordinate system a y-up one
+        markDirty(x0 + tx, height - 1 - (y + ty), x1 + tx, height - 1 - (y + ty));
+        final int row = (height - 1 - (y + ty)) * width;
+        if (blendMode == BLEND_REPLACE) {
+            Arrays.fill(pixels, row + x0 + tx, row + x1 + tx + 1, Blend.toFormat(color, format));
+        } else {
+            Blend.fill(pixels, row + x0 + tx, row + x1 + tx + 1, color, blendMode, format);
+        }
+    }
+
+    /** Returns the cached stamp of the current brush shape for the given radius, building it on first use **/
+    private int[] brushStamp(int radius) {
+        // any shape other than circle and square stamps the whole box
+        final int shape = brushShape == BRUSH_CIRCLE || brushShape == BRUSH_SQUARE ? brushShape : 2;
+
+        int[][] stamps = brushStamps[shape];
+        if (stamps == null || stamps.length <= radius) {
+            stamps = Arrays.copyOf(stamps == null ? new int[0][] : stamps, Math.max(radius + 1, 2 * (stamps == null ? 0 : stamps.length)));
+            brushStamps[shape] = stamps;
+        }
+        if (stamps[radius] != null) return stamps[radius];
+
+        final int[] stamp = new int[radius + 1];
+        for (int dy = 0; dy <= radius; dy++) {
+            if (shape == BRUSH_CIRCLE) {
+                int halfWidth = radius;
+                while (halfWidth >= 0 && halfWidth * halfWidth + dy * dy >= radius * radius) halfWidth--;
+                stamp[dy] = halfWidth;
+            } else if (shape == BRUSH_SQUARE) {
+                stamp[dy] = dy < radius ? radius - 1 : -1;
+            } else {
+                stamp[dy] = radius;
             }
-            pixelX = 0;
-            pixelY++;
+        }
+        stamps[radius] = stamp;
+        return stamp;
+    }
+
+    // recording
+
+    /** Records a draw call of the given kind together with the current state, to be drawn later **/
+    private DrawCommand record(int kind) {
+        final DrawCommand command = recorder.add(kind);
+        saveState(command);
+        return command;
+    }
+
+    /** Copies the state draw calls depend on into the given command **/
+    private void saveState(DrawCommand state) {
+        state.fillColor = fillColor;
+        state.outlineColor = outlineColor;
+        state.fillEnabled = fillEnabled;
+        state.outlinesEnabled = outlinesEnabled;
+        state.brushShape = brushShape;
+        state.strokeWeight = strokeWeight;
+        state.blendMode = blendMode;
+        state.filter = filter;
+        state.tx = tx;
+        state.ty = ty;
+        state.leftPadding = leftPadding;
+        state.rightPadding = rightPadding;
+        state.topPadding = topPadding;
+        state.bottomPadding = bottomPadding;
+    }
+
+    /** Sets the state draw calls depend on back to the one saved in the given command **/
+    private void restoreState(DrawCommand state) {
+        fillColor = state.fillColor;
+        outlineColor = state.outlineColor;
+        fillEnabled = state.fillEnabled;
+        outlinesEnabled = state.outlinesEnabled;
+        brushShape = state.brushShape;
+        strokeWeight = state.strokeWeight;
+        blendMode = state.blendMode;
+        filter = state.filter;
+        translate(state.tx, state.ty);
+        padding(state.leftPadding, state.rightPadding, state.topPadding, state.bottomPadding);
+    }
+
+    /** Draws the given recorded draw call with the state it was recorded with (leaving that state set) **/
+    void replay(DrawCommand command) {
+        restoreState(command);
+
+        final int[] a = command.args;
+        final float[] v = command.vertices;
+        switch (command.kind) {
+            case DrawCommand.SET_PIXEL: setPixel(a[0], a[1], a[2]); break;
+            case DrawCommand.CLEAR: clear(a[0]); break;
+            case DrawCommand.POINT: point(a[0], a[1], a[2], a[3]); break;
+            case DrawCommand.LINE: line(a[0], a[1], a[2], a[3], a[4]); break;
+            case DrawCommand.RECTANGLE: rectangle(a[0], a[1], a[2], a[3]); break;
+            case DrawCommand.ELLIPSE: ellipse(a[0], a[1], a[2], a[3]); break;
+            case DrawCommand.CIRCLE: circle(a[0], a[1], a[2]); break;
+            case DrawCommand.TRIANGLE: triangle(v[0], v[1], v[2], v[3], v[4], v[5]); break;
+            case DrawCommand.IMAGE: image(command.image, a[0], a[1]); break;
+            case DrawCommand.SPRITE: sprite(command.atlas, a[2], a[0], a[1]); break;
+            case DrawCommand.TRANSFORMED_IMAGE:
+                final float[] t = command.transform;
+                transformedImage(command.image, a[0], a[1], a[2], a[3], t[0], t[1], t[2], t[3], t[4], t[5], t[6], a[4]);
+                break;
         }
     }
 
@@ -619,6 +1584,16 @@ public class Screen {
         return outsideCanvas;
     }
 
+    /** Returns the Cohen-Sutherland region code of the given point against the given bounds (0 if inside) **/
+    private static int outcode(int x, int y, int minX, int maxX, int minY, int maxY) {
+        int code = 0;
+        if (x < minX) code |= 1;
+        else if (x > maxX) code |= 2;
+        if (y < minY) code |= 4;
+        else if (y > maxY) code |= 8;
+        return code;
+    }
+
     /**
      * Debug function:
      * draws a rectangle that covers the whole canvas
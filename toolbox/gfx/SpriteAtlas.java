@@ -0,0 +1,254 @@
+package toolbox.gfx;
+
+import java.util.Arrays;
+
+/**
+ * Many sprites stored in the pixels of a single image, each one in its own region, drawn with screen.sprite()
+ * Sprites are addressed by index: in the order they were given to pack(), or row by row from the top left cell for fromGrid()
+ * Region coordinates are in the atlas image pixels array, whose row 0 is the top one
+ * Regions whose pixels are all opaque are flagged as such, and drawn by plain row copies when blending cannot change them
+**/
+public class SpriteAtlas {
+
+    private final Image image;
+    // x, y, width and height of every region
+    private final int[] regions;
+    private final boolean[] opaque;
+
+    private SpriteAtlas(Image image, int[] regions) {
+        this.image = image;
+        this.regions = regions;
+
+        opaque = new boolean[regions.length / 4];
+        for (int i = 0; i < opaque.length; i++) {
+            opaque[i] = isOpaque(image, regions[4 * i], regions[4 * i + 1], regions[4 * i + 2], regions[4 * i + 3]);
+        }
+    }
+
+    /**
+     * Packs copies of the given images into a new atlas (skyline bottom left packing, tallest images first)
+     * The atlas is as wide as the smallest power of two fitting the images area in a square (or as the widest image) and as tall as needed
+    **/
+    public static SpriteAtlas pack(Image... images) {
+        if (images.length == 0) {
+            throw new IllegalArgumentException("No image to pack into the atlas");
+        }
+
+        long area = 0;
+        int maxWidth = 0;
+        for (Image image : images) {
+            area += (long) image.getWidth() * image.getHeight();
+            maxWidth = Math.max(maxWidth, image.getWidth());
+        }
+        final int side = (int) Math.ceil(Math.sqrt(area));
+        final int width = Math.max(maxWidth, Integer.highestOneBit(Math.max(1, side - 1)) << 1);
+
+        // tallest first, then widest first: the skyline stays flat
+        final Integer[] order = new Integer[images.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> images[a].getHeight() != images[b].getHeight()
+            ? images[b].getHeight() - images[a].getHeight()
+            : images[b].getWidth() - images[a].getWidth());
+
+        final Skyline skyline = new Skyline(width);
+        final int[] regions = new int[4 * images.length];
+        for (int i : order) {
+            final int w = images[i].getWidth();
+            final int h = images[i].getHeight();
+            // empty images take no room
+            final long position = w == 0 || h == 0 ? 0 : skyline.place(w, h);
+            regions[4 * i] = (int) (position >>> 32);
+            regions[4 * i + 1] = (int) position;
+            regions[4 * i + 2] = w;
+            regions[4 * i + 3] = h;
+        }
+
+        final int height = Math.max(1, skyline.height);
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < images.length; i++) {
+            final int[] source = images[i].getPixels();
+            final int w = regions[4 * i + 2];
+            for (int row = 0; row < regions[4 * i + 3]; row++) {
+                System.arraycopy(source, row * w, pixels, (regions[4 * i + 1] + row) * width + regions[4 * i], w);
+            }
+        }
+        return new SpriteAtlas(new Image(width, height, pixels), regions);
+    }
+
+    /**
+     * Returns an atlas of the cellWidth x cellHeight cells of the given sprite sheet, row by row from its top left cell
+     * (cells that do not fully fit in the sheet are ignored), sharing the sheet pixels
+    **/
+    public static SpriteAtlas fromGrid(Image sheet, int cellWidth, int cellHeight) {
+        if (cellWidth <= 0 || cellHeight <= 0 || cellWidth > sheet.getWidth() || cellHeight > sheet.getHeight()) {
+            throw new IllegalArgumentException("Invalid sprite sheet cell size: " + cellWidth + "x" + cellHeight);
+        }
+
+        final int columns = sheet.getWidth() / cellWidth;
+        final int rows = sheet.getHeight() / cellHeight;
+        final int[] regions = new int[4 * columns * rows];
+        for (int i = 0; i < columns * rows; i++) {
+            regions[4 * i] = i % columns * cellWidth;
+            regions[4 * i + 1] = i / columns * cellHeight;
+            regions[4 * i + 2] = cellWidth;
+            regions[4 * i + 3] = cellHeight;
+        }
+        return new SpriteAtlas(sheet, regions);
+    }
+
+    /**
+     * Checks again which regions are opaque
+     * Call it after changing the pixels of the atlas image (and invalidate the display lists drawing its sprites)
+    **/
+    public void invalidate() {
+        for (int i = 0; i < opaque.length; i++) {
+            opaque[i] = isOpaque(image, regions[4 * i], regions[4 * i + 1], regions[4 * i + 2], regions[4 * i + 3]);
+        }
+    }
+
+    // GETTERS
+
+    /** Returns the image holding the pixels of every sprite **/
+    public Image getImage() {
+        return image;
+    }
+
+    /** Returns the number of sprites **/
+    public int size() {
+        return opaque.length;
+    }
+
+    /** Returns the column of the left edge of the given sprite region **/
+    public int getX(int index) {
+        return regions[4 * index];
+    }
+
+    /** Returns the row of the top edge of the given sprite region (row 0 is the top of the atlas image) **/
+    public int getY(int index) {
+        return regions[4 * index + 1];
+    }
+
+    public int getWidth(int index) {
+        return regions[4 * index + 2];
+    }
+
+    public int getHeight(int index) {
+        return regions[4 * index + 3];
+    }
+
+    /** Returns true if every pixel of the given sprite is fully opaque **/
+    public boolean isOpaque(int index) {
+        return opaque[index];
+    }
+
+    // UTILITY
+
+    private static boolean isOpaque(Image image, int x, int y, int width, int height) {
+        final int[] pixels = image.getPixels();
+        for (int row = y; row < y + height; row++) {
+            for (int i = row * image.getWidth() + x; i < row * image.getWidth() + x + width; i++) {
+                if ((pixels[i] >>> 24) != 255) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The top outline of the packed area: segments of columns [x, x + width) filled from row 0 down to row y (excluded),
+     * from left to right and covering the whole atlas width
+    **/
+    private static final class Skyline {
+
+        private final int atlasWidth;
+        private int[] x = new int[16], y = new int[16], width = new int[16];
+        private int size = 1;
+        // the rows used so far
+        int height = 0;
+
+        Skyline(int atlasWidth) {
+            this.atlasWidth = atlasWidth;
+            width[0] = atlasWidth;
+        }
+
+        /** Places a w x h rectangle as high as possible (then as far left as possible) and returns its position as (x << 32) | y **/
+        long place(int w, int h) {
+            int best = -1, bestTop = Integer.MAX_VALUE;
+            for (int i = 0; i < size && x[i] + w <= atlasWidth; i++) {
+                final int top = top(i, w);
+                if (top < bestTop) {
+                    best = i;
+                    bestTop = top;
+                }
+            }
+
+            final int left = x[best];
+            insert(best, bestTop + h, w);
+            height = Math.max(height, bestTop + h);
+            return ((long) left << 32) | bestTop;
+        }
+
+        /** Returns the first free row for a rectangle w columns wide starting on the left of the given segment **/
+        private int top(int segment, int w) {
+            final int end = x[segment] + w;
+            int top = 0;
+            for (int i = segment; i < size && x[i] < end; i++) {
+                top = Math.max(top, y[i]);
+            }
+            return top;
+        }
+
+        /** Raises the skyline to the given row over the w columns starting on the left of the given segment **/
+        private void insert(int segment, int bottom, int w) {
+            final int start = x[segment];
+            final int end = start + w;
+
+            // drop the segments fully covered by the new one and cut the one it partially covers
+            int next = segment;
+            while (next < size && x[next] + width[next] <= end) {
+                next++;
+            }
+            if (next < size && x[next] < end) {
+                width[next] -= end - x[next];
+                x[next] = end;
+            }
+
+            final int removed = next - segment;
+            if (removed == 0) {
+                ensureCapacity(size + 1);
+            }
+            System.arraycopy(x, next, x, segment + 1, size - next);
+            System.arraycopy(y, next, y, segment + 1, size - next);
+            System.arraycopy(width, next, width, segment + 1, size - next);
+            size += 1 - removed;
+            x[segment] = start;
+            y[segment] = bottom;
+            width[segment] = w;
+
+            // merge the new segment with its neighbours at the same row
+            if (segment + 1 < size && y[segment + 1] == bottom) {
+                width[segment] += width[segment + 1];
+                remove(segment + 1);
+            }
+            if (segment > 0 && y[segment - 1] == bottom) {
+                width[segment - 1] += width[segment];
+                remove(segment);
+            }
+        }
+
+        private void remove(int segment) {
+            System.arraycopy(x, segment + 1, x, segment, size - segment - 1);
+            System.arraycopy(y, segment + 1, y, segment, size - segment - 1);
+            System.arraycopy(width, segment + 1, width, segment, size - segment - 1);
+            size--;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= x.length) return;
+            x = Arrays.copyOf(x, capacity * 2);
+            y = Arrays.copyOf(y, capacity * 2);
+            width = Arrays.copyOf(width, capacity * 2);
+        }
+    }
+}
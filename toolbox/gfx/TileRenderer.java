@@ -0,0 +1,88 @@
+package toolbox.gfx;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Records the draw calls of a Screen and draws them in parallel, split into TILE_SIZE x TILE_SIZE tiles
+ * Every tile is drawn by a view of the screen that can only write its own pixels,
+ * in recording order, so the result is the same as drawing everything on a single thread
+**/
+final class TileRenderer {
+
+    static final int TILE_SIZE = 64;
+
+    private final Screen screen;
+    private final int columns, rows;
+
+    // one view of the screen per tile, created the first time the tile is drawn
+    private final Screen[] views;
+
+    // draw calls recorded since the last flush
+    final CommandBuffer commands = new CommandBuffer();
+
+    // indices of the commands touching every tile, in recording order
+    private final int[][] bins;
+    private final int[] binSizes;
+
+    TileRenderer(Screen screen) {
+        this.screen = screen;
+        columns = (screen.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (screen.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+
+        views = new Screen[columns * rows];
+        bins = new int[columns * rows][16];
+        binSizes = new int[columns * rows];
+    }
+
+    /** Draws and then forgets every recorded command **/
+    void flush() {
+        if (commands.size() == 0) return;
+
+        final int width = screen.getWidth();
+        final int height = screen.getHeight();
+
+        Arrays.fill(binSizes, 0);
+        for (int i = 0; i < commands.size(); i++) {
+            final DrawCommand command = commands.get(i);
+            if (!command.computeBounds(width, height)) continue;
+            screen.markDirty(command.x0, command.y0, command.x1, command.y1);
+
+            for (int row = command.y0 / TILE_SIZE; row <= command.y1 / TILE_SIZE; row++) {
+                for (int column = command.x0 / TILE_SIZE; column <= command.x1 / TILE_SIZE; column++) {
+                    bin(row * columns + column, i);
+                }
+            }
+        }
+
+        IntStream.range(0, columns * rows).parallel().forEach(this::drawTile);
+
+        commands.clear();
+    }
+
+    private void bin(int tile, int command) {
+        if (binSizes[tile] == bins[tile].length) {
+            bins[tile] = Arrays.copyOf(bins[tile], binSizes[tile] * 2);
+        }
+        bins[tile][binSizes[tile]++] = command;
+    }
+
+    private void drawTile(int tile) {
+        if (binSizes[tile] == 0) return;
+
+        Screen view = views[tile];
+        if (view == null) {
+            final int x0 = (tile % columns) * TILE_SIZE;
+            final int y0 = (tile / columns) * TILE_SIZE;
+            final int x1 = Math.min(screen.getWidth(), x0 + TILE_SIZE) - 1;
+            final int y1 = Math.min(screen.getHeight(), y0 + TILE_SIZE) - 1;
+            view = new Screen(screen, x0, y0, x1, y1);
+            views[tile] = view;
+        }
+
+        final int[] bin = bins[tile];
+        for (int i = 0; i < binSizes[tile]; i++) {
+            view.replay(commands.get(bin[i]));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package toolbox.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits until System.nanoTime() deadlines without holding a core busy:
+ * the thread is parked until shortly before the deadline, then spins for the last part of the wait
+ * The spin margin adapts to how late the thread wakes up from parking on this system,
+ * so it stays small where parking is precise and grows where the scheduler is coarse
+ * A clock is meant to be used by a single thread, any thread can wake it up
+**/
+public class Clock {
+
+    // bounds of the time spent spinning before a deadline, in nanoseconds
+    private static final long MIN_SPIN_MARGIN = 100_000;
+    private static final long MAX_SPIN_MARGIN = 4_000_000;
+    // added to the measured wake up delay to get the spin margin
+    private static final long SPIN_SLACK = 50_000;
+
+    private long spinMargin = 1_000_000;
+
+    // the thread waiting on this clock, and whether wake() was called since it last returned
+    private volatile Thread waiter;
+    private volatile boolean woken = false;
+
+    /**
+     * Waits until System.nanoTime() reaches the given deadline (returns right away if it already did)
+     * Returns false if the wait was cut short by wake()
+    **/
+    public boolean waitUntil(long deadline) {
+        waiter = Thread.currentThread();
+        long remaining = deadline - System.nanoTime();
+
+        while (remaining > spinMargin) {
+            if (woken) break;
+
+            final long wakeUp = deadline - spinMargin;
+            LockSupport.parkNanos(wakeUp - System.nanoTime());
+            final long now = System.nanoTime();
+            if (woken) break;
+
+            // grow the margin right away when parking overshoots, shrink it slowly otherwise
+            final long late = now - wakeUp;
+            spinMargin = Math.clamp(Math.max(late + SPIN_SLACK, spinMargin - spinMargin / 16), MIN_SPIN_MARGIN, MAX_SPIN_MARGIN);
+            remaining = deadline - now;
+        }
+
+        while (System.nanoTime() - deadline < 0) {
+            if (woken) {
+                woken = false;
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    /** Makes the current waitUntil() call return right away, or the next one if the clock is not waiting (callable from any thread) **/
+    public void wake() {
+        woken = true;
+        final Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Returns the current spin margin, in nanoseconds **/
+    public long getSpinMargin() {
+        return spinMargin;
+    }
+}
@@ -0,0 +1,88 @@
+package toolbox.utils;
+
+import java.util.Arrays;
+
+/**
+ * A fixed memory histogram of durations in nanoseconds, from 0 to Long.MAX_VALUE
+ * Durations are counted in buckets 1 / SUB_BUCKETS of a power of two wide (about 6% of the value), so percentiles are
+ * within 6% of the exact ones, while recording a duration never allocates and costs a few instructions
+ * It can be recorded on one thread and read on another
+**/
+public class LatencyHistogram {
+
+    // buckets per power of two, values below 2 * SUB_BUCKETS have a bucket each
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long total = 0;
+    private long max = 0;
+
+    /** Counts the given duration (negative durations are counted as 0) **/
+    public synchronized void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[bucket(nanos)]++;
+        count++;
+        total += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /** Forgets every recorded duration **/
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    /** Returns the amount of recorded durations **/
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** Returns the longest recorded duration, in nanoseconds (0 if none) **/
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /** Returns the average recorded duration, in nanoseconds (0 if none) **/
+    public synchronized long getMean() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Returns the duration, in nanoseconds, that the given percentage (ranged [0, 100]) of the recorded durations do not exceed
+     * (the upper bound of its bucket, never more than the longest duration, 0 if nothing was recorded)
+    **/
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(count * Math.clamp(percentile, 0, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, bucketEnd(i));
+        }
+        return max;
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS) return (int) nanos;
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        final int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return 2 * SUB_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Returns the biggest duration counted in the given bucket **/
+    private static long bucketEnd(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) return bucket;
+
+        final int exponent = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final long sub = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return sub * width + width - 1;
+    }
+}